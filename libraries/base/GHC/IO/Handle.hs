@@ -47,7 +47,9 @@ module GHC.IO.Handle (
 
    hWaitForInput, hGetChar, hGetLine, hGetContents, hPutChar, hPutStr,
 
-   hGetBuf, hGetBufNonBlocking, hPutBuf, hPutBufNonBlocking
+   hGetBuf, hGetBufNonBlocking, hPutBuf, hPutBufNonBlocking,
+
+   hTransfer
  ) where
 
 import GHC.IO
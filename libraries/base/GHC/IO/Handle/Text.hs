@@ -28,7 +28,7 @@ module GHC.IO.Handle.Text (
         hWaitForInput, hGetChar, hGetLine, hGetContents, hPutChar, hPutStr,
         commitBuffer',       -- hack, see below
         hGetBuf, hGetBufSome, hGetBufNonBlocking, hPutBuf, hPutBufNonBlocking,
-        memcpy, hPutStrLn,
+        hTransfer, memcpy, hPutStrLn,
     ) where
 
 import GHC.IO
@@ -39,6 +39,7 @@ import GHC.IO.Exception
 import GHC.Exception
 import GHC.IO.Handle.Types
 import GHC.IO.Handle.Internals
+import System.Posix.Internals ( c_transfer )
 import qualified GHC.IO.Device as IODevice
 import qualified GHC.IO.Device as RawIO
 
@@ -768,6 +769,67 @@ writeChunkNonBlocking h_@Handle__{..} ptr bytes
   | Just fd <- cast haDevice  =  RawIO.writeNonBlocking (fd::FD) ptr bytes
   | otherwise = errorWithoutStackTrace "Todo: hPutBuf"
 
+-- ---------------------------------------------------------------------------
+-- hTransfer
+
+-- | 'hTransfer' @from to count@ copies up to @count@ bytes from the handle
+-- @from@ to the handle @to@. It returns the number of bytes copied, which is
+-- smaller than @count@ only if EOF was reached.
+--
+-- When both handles are backed by blocking channels and one of them is a
+-- file, the bytes are moved by the operating system without passing through
+-- memory managed by Eta. Otherwise they are copied in chunks, as with
+-- 'hGetBuf' and 'hPutBuf'.
+--
+-- Like 'hGetBuf' and 'hPutBuf', 'hTransfer' ignores the prevailing
+-- 'TextEncoding' and 'NewlineMode' on the handles.
+
+hTransfer :: Handle -> Handle -> Int -> IO Int
+hTransfer from to count
+  | count == 0 = return 0
+  | count <  0 = illegalBufferSize from "hTransfer" count
+  | otherwise = do
+      m <- transferDirect from to count
+      case m of
+        Just n  -> return n
+        Nothing -> transferCopy from to count
+
+-- Returns Nothing if the bytes have to be copied instead, which includes the
+-- case where @from@ has buffered input that must be consumed first. Both
+-- handles are locked at once, so a handle is never transferred to itself.
+transferDirect :: Handle -> Handle -> Int -> IO (Maybe Int)
+transferDirect from to count
+  | from == to = return Nothing
+  | otherwise =
+    wantReadableHandle_ "hTransfer" from $ \ from_@Handle__{..} -> do
+      flushCharReadBuffer from_
+      buf <- readIORef haByteBuffer
+      case haFD from_ of
+        Just fromFD | isEmptyBuffer buf ->
+          wantWritableHandle "hTransfer" to $ \ to_ ->
+            case haFD to_ of
+              Just toFD -> do
+                flushWriteBuffer to_
+                n <- c_transfer (fdChannel fromFD) (fdChannel toFD)
+                                (fromIntegral count)
+                return $ if n < 0 then Nothing else Just (fromIntegral n)
+              Nothing -> return Nothing
+        _ -> return Nothing
+
+transferCopy :: Handle -> Handle -> Int -> IO Int
+transferCopy from to count =
+  allocaBytes chunkSize $ \ptr ->
+    let loop !so_far
+          | so_far >= count = return so_far
+          | otherwise = do
+              n <- hGetBuf from ptr (min chunkSize (count - so_far))
+              if n == 0
+                then return so_far
+                else do hPutBuf to ptr n
+                        loop (so_far + n)
+    in loop 0
+  where chunkSize = 8192
+
 -- ---------------------------------------------------------------------------
 -- hGetBuf
 
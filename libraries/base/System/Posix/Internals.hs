@@ -385,6 +385,10 @@ foreign import java unsafe "@static eta.base.Utils.c_write"
 foreign import java safe "@static eta.base.Utils.c_write"
   c_safe_write :: Channel -> Ptr Word8 -> CSize -> IO CSsize
 
+-- Returns -1 if the channels can't transfer directly
+foreign import java safe "@static eta.base.Utils.c_transfer"
+  c_transfer :: Channel -> Channel -> Int64 -> IO Int64
+
 foreign import java safe "truncate"
   c_ftruncate :: FileChannel -> COff -> IO FileChannel
 
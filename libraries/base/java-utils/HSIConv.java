@@ -25,9 +25,50 @@ public class HSIConv {
     public final CharsetDecoder decoder;
     public final CharsetEncoder encoder;
 
+    /* The intermediate buffer used when transcoding with the CharsetDecoder and
+       CharsetEncoder. It's reused across calls to avoid allocating on every call. */
+    private final CharBuffer chars = CharBuffer.allocate(CHUNK_SIZE);
+
+    private static final int CHUNK_SIZE = 4096;
+
+    /* Common conversions are done directly on the bytes. */
+    private final int fastPath;
+    private final boolean bigEndian;
+
+    private static final int FAST_NONE            = 0;
+    private static final int FAST_UTF8_TO_UTF32   = 1;
+    private static final int FAST_UTF32_TO_UTF8   = 2;
+    private static final int FAST_LATIN1_TO_UTF32 = 3;
+    private static final int FAST_UTF32_TO_LATIN1 = 4;
+
     public HSIConv(CharsetDecoder decoder, CharsetEncoder encoder) {
         this.decoder = decoder;
         this.encoder = encoder;
+        final String from = decoder.charset().name();
+        final String to   = encoder.charset().name();
+        int fastPath = FAST_NONE;
+        boolean bigEndian = true;
+        if (isUTF32(to)) {
+            bigEndian = to.equals("UTF-32BE");
+            if (from.equals("UTF-8")) {
+                fastPath = FAST_UTF8_TO_UTF32;
+            } else if (from.equals("ISO-8859-1")) {
+                fastPath = FAST_LATIN1_TO_UTF32;
+            }
+        } else if (isUTF32(from)) {
+            bigEndian = from.equals("UTF-32BE");
+            if (to.equals("UTF-8")) {
+                fastPath = FAST_UTF32_TO_UTF8;
+            } else if (to.equals("ISO-8859-1")) {
+                fastPath = FAST_UTF32_TO_LATIN1;
+            }
+        }
+        this.fastPath  = fastPath;
+        this.bigEndian = bigEndian;
+    }
+
+    private static boolean isUTF32(String charset) {
+        return charset.equals("UTF-32BE") || charset.equals("UTF-32LE");
     }
 
     private static final boolean debug = false;
@@ -142,63 +183,247 @@ public class HSIConv {
         return buf;
     }
 
+    /* Returns the number of characters converted or a negative errno:
+       - E2BIG  if the output buffer is too small for the next character
+       - EILSEQ if an invalid sequence was found in the input
+       - EINVAL if the input ends with an incomplete sequence
+       In all cases, the buffer positions are left right after the last character that
+       was fully converted. */
     private static int recode(HSIConv iconv, ByteBuffer inbuf,
                               ByteBuffer outbuf) {
+        if (inbuf.remaining() == 0 || outbuf.remaining() == 0)
+            return 0;
+        int charsWritten = 0;
+        if (iconv.fastPath != FAST_NONE) {
+            charsWritten = iconv.recodeFast(inbuf, outbuf);
+            /* The fast path stops at anything it can't handle, like invalid input
+               or a lack of space, and leaves it to the general path to report the
+               right error. */
+            if (!inbuf.hasRemaining())
+                return charsWritten;
+        }
+        final int result = iconv.recodeBulk(inbuf, outbuf);
+        if (result < 0) {
+            debug("Recoding error: " + result);
+            return result;
+        }
+        charsWritten += result;
+        debug("Chars written: " + charsWritten);
+        return charsWritten;
+    }
+
+    private int recodeBulk(ByteBuffer inbuf, ByteBuffer outbuf) {
         int charsWritten   = 0;
-        CharsetDecoder dec = iconv.decoder;
-        CharsetEncoder enc = iconv.encoder;
+        CharsetDecoder dec = decoder;
+        CharsetEncoder enc = encoder;
+        CharBuffer     buf = chars;
         try {
-            
-            if (inbuf.remaining() == 0 || outbuf.remaining() == 0)
-                return 0;
-
-            CharBuffer buf16 = CharBuffer.allocate(1);
-
             for (;;) {
                 int inInitPos = inbuf.position();
-                ((Buffer)buf16).clear();
+                ((Buffer)buf).clear();
 
-                CoderResult decRes =  dec.decode(inbuf, buf16, true);
-               
+                CoderResult decRes = dec.decode(inbuf, buf, true);
                 if (decRes.isUnderflow())
-                    decRes = dec.flush(buf16);
-                else if (decRes.isError()) {
-                    error("Error decoding: " + decRes); 
+                    decRes = dec.flush(buf);
+                ((Buffer)buf).flip();
+
+                /* Encode whatever was decoded before looking at decoding errors. */
+                int decoded = buf.remaining();
+                CoderResult encRes = enc.encode(buf, outbuf, true);
+                int encoded = decoded - buf.remaining();
+                charsWritten += encoded;
+                if (buf.hasRemaining()) {
+                    /* The encoder stopped early, so move the input back to right
+                       after the last character that was encoded. */
+                    ((Buffer)inbuf).position(inInitPos);
+                    dec.reset();
+                    skipChars(inbuf, encoded);
+                    if (encRes.isOverflow())
+                        return -E2BIG;
+                    error("Error encoding: " + encRes);
+                    return -EILSEQ;
+                }
+
+                if (decRes.isError()) {
+                    error("Error decoding: " + decRes);
                     if (decRes.isMalformed() &&
                         decRes.length() == inbuf.remaining())
-                        charsWritten = -EINVAL;
+                        return -EINVAL;
                     else
-                        charsWritten = -EILSEQ;
-                    break;
-                }
-                ((Buffer)buf16).flip();
-
-                CoderResult encRes = enc.encode(buf16,outbuf,true);
-                if (encRes.isUnderflow()) {
-                    charsWritten ++;
-                } else {
-                    if (encRes.isOverflow())
-                        charsWritten = -E2BIG;
-                    else if (encRes.isError()) {
-                        error("Error encoding: "+encRes);
-                        charsWritten = -EILSEQ;
-                    }
-                    ((Buffer)inbuf).position(inInitPos);
-                    break;
+                        return -EILSEQ;
                 }
                 if (decRes.isUnderflow() || !inbuf.hasRemaining())
                     break;
-               
             }
-            debug("Chars written: " + charsWritten);
         } finally {
             dec.reset();
             enc.reset();
         }
-        if (charsWritten == -1) {
-            error(MemoryManager.getHeap().getStatistics().
-                  generateReport());
-        }
         return charsWritten;
     }
+
+    /* Advances the input past exactly n decoded characters. */
+    private void skipChars(ByteBuffer inbuf, int n) {
+        ((Buffer)chars).clear();
+        ((Buffer)chars).limit(n);
+        decoder.decode(inbuf, chars, true);
+    }
+
+    private int recodeFast(ByteBuffer inbuf, ByteBuffer outbuf) {
+        switch (fastPath) {
+            case FAST_UTF8_TO_UTF32:
+                return utf8ToUTF32(inbuf, outbuf);
+            case FAST_UTF32_TO_UTF8:
+                return utf32ToUTF8(inbuf, outbuf);
+            case FAST_LATIN1_TO_UTF32:
+                return latin1ToUTF32(inbuf, outbuf);
+            case FAST_UTF32_TO_LATIN1:
+                return utf32ToLatin1(inbuf, outbuf);
+            default:
+                return 0;
+        }
+    }
+
+    private static boolean isContinuation(int b) {
+        return (b & 0xc0) == 0x80;
+    }
+
+    /* Only well-formed sequences are converted, just like the JDK decoder accepts. */
+    private int utf8ToUTF32(ByteBuffer in, ByteBuffer out) {
+        int ip = in.position(), il = in.limit();
+        int op = out.position(), ol = out.limit();
+        int n = 0;
+        while (ip < il && ol - op >= 4) {
+            int b1 = in.get(ip);
+            int cp, len;
+            if (b1 >= 0) {
+                cp  = b1;
+                len = 1;
+            } else if ((b1 >> 5) == -2 && (b1 & 0x1e) != 0) {
+                if (il - ip < 2) break;
+                int b2 = in.get(ip + 1);
+                if (!isContinuation(b2)) break;
+                cp  = ((b1 & 0x1f) << 6) | (b2 & 0x3f);
+                len = 2;
+            } else if ((b1 >> 4) == -2) {
+                if (il - ip < 3) break;
+                int b2 = in.get(ip + 1);
+                int b3 = in.get(ip + 2);
+                if (!isContinuation(b2) || !isContinuation(b3)) break;
+                cp = ((b1 & 0x0f) << 12) | ((b2 & 0x3f) << 6) | (b3 & 0x3f);
+                if (cp < 0x800 || (cp >= 0xd800 && cp <= 0xdfff)) break;
+                len = 3;
+            } else if ((b1 >> 3) == -2) {
+                if (il - ip < 4) break;
+                int b2 = in.get(ip + 1);
+                int b3 = in.get(ip + 2);
+                int b4 = in.get(ip + 3);
+                if (!isContinuation(b2) || !isContinuation(b3)
+                    || !isContinuation(b4)) break;
+                cp = ((b1 & 0x07) << 18) | ((b2 & 0x3f) << 12)
+                   | ((b3 & 0x3f) << 6)  | (b4 & 0x3f);
+                if (cp < 0x10000 || cp > 0x10ffff) break;
+                len = 4;
+            } else {
+                break;
+            }
+            putCodePoint(out, op, cp);
+            ip += len;
+            op += 4;
+            n++;
+        }
+        ((Buffer)in).position(ip);
+        ((Buffer)out).position(op);
+        return n;
+    }
+
+    private int utf32ToUTF8(ByteBuffer in, ByteBuffer out) {
+        int ip = in.position(), il = in.limit();
+        int op = out.position(), ol = out.limit();
+        int n = 0;
+        while (il - ip >= 4 && op < ol) {
+            int cp = getCodePoint(in, ip);
+            if (cp < 0 || cp > 0x10ffff) {
+                break;
+            } else if (cp < 0x80) {
+                out.put(op++, (byte) cp);
+            } else if (cp < 0x800) {
+                if (ol - op < 2) break;
+                out.put(op++, (byte)(0xc0 | (cp >> 6)));
+                out.put(op++, (byte)(0x80 | (cp & 0x3f)));
+            } else if (cp < 0x10000) {
+                if ((cp >= 0xd800 && cp <= 0xdfff) || ol - op < 3) break;
+                out.put(op++, (byte)(0xe0 | (cp >> 12)));
+                out.put(op++, (byte)(0x80 | ((cp >> 6) & 0x3f)));
+                out.put(op++, (byte)(0x80 | (cp & 0x3f)));
+            } else {
+                if (ol - op < 4) break;
+                out.put(op++, (byte)(0xf0 | (cp >> 18)));
+                out.put(op++, (byte)(0x80 | ((cp >> 12) & 0x3f)));
+                out.put(op++, (byte)(0x80 | ((cp >> 6) & 0x3f)));
+                out.put(op++, (byte)(0x80 | (cp & 0x3f)));
+            }
+            ip += 4;
+            n++;
+        }
+        ((Buffer)in).position(ip);
+        ((Buffer)out).position(op);
+        return n;
+    }
+
+    private int latin1ToUTF32(ByteBuffer in, ByteBuffer out) {
+        int ip = in.position(), il = in.limit();
+        int op = out.position(), ol = out.limit();
+        int n = 0;
+        while (ip < il && ol - op >= 4) {
+            putCodePoint(out, op, in.get(ip++) & 0xff);
+            op += 4;
+            n++;
+        }
+        ((Buffer)in).position(ip);
+        ((Buffer)out).position(op);
+        return n;
+    }
+
+    private int utf32ToLatin1(ByteBuffer in, ByteBuffer out) {
+        int ip = in.position(), il = in.limit();
+        int op = out.position(), ol = out.limit();
+        int n = 0;
+        while (il - ip >= 4 && op < ol) {
+            int cp = getCodePoint(in, ip);
+            if (cp < 0 || cp > 0xff) break;
+            out.put(op++, (byte) cp);
+            ip += 4;
+            n++;
+        }
+        ((Buffer)in).position(ip);
+        ((Buffer)out).position(op);
+        return n;
+    }
+
+    private int getCodePoint(ByteBuffer buf, int i) {
+        int b0 = buf.get(i)     & 0xff;
+        int b1 = buf.get(i + 1) & 0xff;
+        int b2 = buf.get(i + 2) & 0xff;
+        int b3 = buf.get(i + 3) & 0xff;
+        if (bigEndian) {
+            return (b0 << 24) | (b1 << 16) | (b2 << 8) | b3;
+        } else {
+            return (b3 << 24) | (b2 << 16) | (b1 << 8) | b0;
+        }
+    }
+
+    private void putCodePoint(ByteBuffer buf, int i, int cp) {
+        if (bigEndian) {
+            buf.put(i,     (byte)(cp >>> 24));
+            buf.put(i + 1, (byte)(cp >>> 16));
+            buf.put(i + 2, (byte)(cp >>> 8));
+            buf.put(i + 3, (byte) cp);
+        } else {
+            buf.put(i,     (byte) cp);
+            buf.put(i + 1, (byte)(cp >>> 8));
+            buf.put(i + 2, (byte)(cp >>> 16));
+            buf.put(i + 3, (byte)(cp >>> 24));
+        }
+    }
 }
@@ -285,6 +285,51 @@ public class Utils {
         return size;
     }
 
+    /* Moves up to count bytes between two channels without copying them through the
+       managed heap when one of them is a FileChannel, which lets the OS use sendfile
+       and the like. Returns the number of bytes moved, which is less than count only
+       if the end of the input was reached, or -1 if the channels don't support it. */
+    public static long c_transfer(final Channel from, final Channel to, final long count)
+        throws IOException {
+        // Clear interrupt status to avoid unnecessarily closing the stream.
+        Thread.interrupted();
+        if (!(from instanceof ReadableByteChannel) || !(to instanceof WritableByteChannel)
+            || isNonBlocking(from) || isNonBlocking(to)) {
+            return -1;
+        }
+        long transferred = 0;
+        if (from instanceof FileChannel) {
+            final FileChannel fc = (FileChannel) from;
+            long position = fc.position();
+            while (transferred < count) {
+                final long n = fc.transferTo(position, count - transferred,
+                                             (WritableByteChannel) to);
+                if (n <= 0) break;
+                position    += n;
+                transferred += n;
+            }
+            fc.position(position);
+        } else if (to instanceof FileChannel) {
+            final FileChannel fc = (FileChannel) to;
+            long position = fc.position();
+            while (transferred < count) {
+                final long n = fc.transferFrom((ReadableByteChannel) from, position,
+                                               count - transferred);
+                if (n <= 0) break;
+                position    += n;
+                transferred += n;
+            }
+            fc.position(position);
+        } else {
+            return -1;
+        }
+        if (Runtime.debugIO()) {
+            debugIO("c_transfer: " + from + " -> " + to + " Count: " + count +
+                    " return: " + transferred);
+        }
+        return transferred;
+    }
+
     public static String byteBufferToStr(long address, int len)
         throws UnsupportedEncodingException {
         return new String(eta.ghc_prim.Utils.byteBufferToBytes(address, len), "UTF-8");
@@ -427,6 +472,12 @@ public class Utils {
     }
 
     public static long _realloc(long oldAddress, int newSize) {
+        if (oldAddress == 0) {
+            return _malloc(newSize);
+        }
+        if (MemoryManager.resizeBuffer(oldAddress, newSize)) {
+            return oldAddress;
+        }
         long newAddress = MemoryManager.allocateBuffer(newSize, true);
         int  oldSize    = MemoryManager.allocatedSize(oldAddress);
         c_memcpy(newAddress, oldAddress, Math.min(oldSize, newSize));
@@ -64,7 +64,7 @@ public class Runtime {
     }
 
     public static long getMinTSOIdleTimeNanos() {
-        return maxTSOBlockTime * 1000000L;
+        return minTSOIdleTime * 1000000L;
     }
 
     public static void setMinTSOIdleTime(int newMinTSOIdleTime) {
@@ -125,7 +125,7 @@ public class Runtime {
     }
 
     /* Parameter: maxLocalSparks (int)
-       The maximum capacity of the bounded Global Spark Queue.
+       The capacity of the bounded spark pool owned by each Capability.
        */
     private static int maxLocalSparks;
 
@@ -139,6 +139,22 @@ public class Runtime {
         maxLocalSparks = newMaxLocalSparks;
     }
 
+    /* Parameter: localRunQueueSize (int)
+       The capacity of the work-stealing run queue owned by each Capability. Forked
+       threads that do not fit will overflow into the Global Run Queue.
+       */
+    private static int localRunQueueSize;
+
+    public static final String LOCAL_RUN_QUEUE_SIZE = "eta.rts.localRunQueueSize";
+
+    public static int getLocalRunQueueSize() {
+        return localRunQueueSize;
+    }
+
+    public static void setLocalRunQueueSize(int newLocalRunQueueSize) {
+        localRunQueueSize = newLocalRunQueueSize;
+    }
+
     /* Parameter: tailCallThreshold (int)
         Threshold for trampoline bouncing
      */
@@ -169,6 +185,118 @@ public class Runtime {
         Runtime.selectorSetSize = selectorSetSize;
     }
 
+    /* Parameter: ioManagerThreads (int)
+       The number of I/O event loop threads, each with their own Selector, that service
+       the threads blocked on channels. */
+    private static int ioManagerThreads;
+
+    public static final String IO_MANAGER_THREADS = "eta.rts.ioManagerThreads";
+
+    public static int getIOManagerThreads() {
+        return ioManagerThreads;
+    }
+
+    public static void setIOManagerThreads(int newIOManagerThreads) {
+        ioManagerThreads = newIOManagerThreads;
+    }
+
+    /* Parameter: stmContentionManager (String)
+       The policy that STM transactions follow after a failed commit: "backoff" for
+       randomized exponential backoff, "karma" to also give priority to transactions
+       that have been aborted more often, "none" to restart right away, or the name of
+       a class that extends eta.runtime.stm.ContentionManager. */
+    private static String stmContentionManager;
+
+    public static final String STM_CONTENTION_MANAGER = "eta.rts.stmContentionManager";
+
+    public static String getSTMContentionManager() {
+        return stmContentionManager;
+    }
+
+    public static void setSTMContentionManager(String newSTMContentionManager) {
+        stmContentionManager = newSTMContentionManager;
+    }
+
+    /* Parameter: stmIrrevocableAfter (int)
+       The number of times an STM transaction can be aborted before it runs in
+       irrevocable mode, where it holds off the commits of all other transactions
+       that write so that it's guaranteed to commit. 0 disables it. */
+    private static int stmIrrevocableAfter;
+
+    public static final String STM_IRREVOCABLE_AFTER = "eta.rts.stmIrrevocableAfter";
+
+    public static int getSTMIrrevocableAfter() {
+        return stmIrrevocableAfter;
+    }
+
+    public static void setSTMIrrevocableAfter(int newSTMIrrevocableAfter) {
+        stmIrrevocableAfter = newSTMIrrevocableAfter;
+    }
+
+    /* Parameter: stmRetryCheckTime (int)
+       The maximum amount of time (in ms) a transaction that is blocked in retry
+       waits before checking again whether it's blocked indefinitely. */
+    private static int stmRetryCheckTime;
+
+    public static final String STM_RETRY_CHECK_TIME = "eta.rts.stmRetryCheckTime";
+
+    public static int getSTMRetryCheckTime() {
+        return stmRetryCheckTime;
+    }
+
+    public static long getSTMRetryCheckTimeNanos() {
+        return stmRetryCheckTime * 1000000L;
+    }
+
+    public static void setSTMRetryCheckTime(int newSTMRetryCheckTime) {
+        stmRetryCheckTime = newSTMRetryCheckTime;
+    }
+
+    /* Parameter: byteArrayGCThreshold (int)
+       The number of megabytes that ByteArrays can allocate before a GC is requested
+       so that the memory of the unreachable ones can be reclaimed. 0 disables it. */
+    private static int byteArrayGCThreshold;
+
+    public static final String BYTE_ARRAY_GC_THRESHOLD = "eta.rts.byteArrayGCThreshold";
+
+    public static int getByteArrayGCThreshold() {
+        return byteArrayGCThreshold;
+    }
+
+    public static void setByteArrayGCThreshold(int newByteArrayGCThreshold) {
+        byteArrayGCThreshold = newByteArrayGCThreshold;
+    }
+
+    /* Parameter: spillDirectMemory (boolean)
+       Back direct allocations with memory-mapped temporary files once the direct
+       memory limit of the JVM has been reached instead of failing. */
+    private static boolean spillDirectMemory;
+
+    public static final String SPILL_DIRECT_MEMORY = "eta.rts.spillDirectMemory";
+
+    public static boolean shouldSpillDirectMemory() {
+        return spillDirectMemory;
+    }
+
+    public static void setSpillDirectMemory(boolean newSpillDirectMemory) {
+        spillDirectMemory = newSpillDirectMemory;
+    }
+
+    /* Parameter: largeObjectPoolSize (int)
+       The maximum number of megabytes of freed large objects that are kept to be
+       reused by later large allocations. */
+    private static int largeObjectPoolSize;
+
+    public static final String LARGE_OBJECT_POOL_SIZE = "eta.rts.largeObjectPoolSize";
+
+    public static int getLargeObjectPoolSize() {
+        return largeObjectPoolSize;
+    }
+
+    public static void setLargeObjectPoolSize(int newLargeObjectPoolSize) {
+        largeObjectPoolSize = newLargeObjectPoolSize;
+    }
+
     /* Parameter: clearThunks (boolean)
        Clear thunks of their free variables once they are evaluated. */
     private static boolean clearThunks;
@@ -230,6 +358,16 @@ public class Runtime {
         return debugMemoryManager;
     }
 
+    /* When enabled, all reads and writes of off-heap memory go through the bounds-checked
+       ByteBuffer accessors instead of raw memory access. */
+    private static boolean debugCheckedMemoryAccess;
+
+    public static final String DEBUG_CHECKED_MEMORY_ACCESS_PROPERTY = "eta.debug.checkedMemoryAccess";
+
+    public static boolean debugCheckedMemoryAccess() {
+        return debugCheckedMemoryAccess;
+    }
+
     private static boolean debugExceptions;
 
     public static final String DEBUG_EXCEPTIONS_PROPERTY = "eta.debug.exceptions";
@@ -346,7 +484,15 @@ public class Runtime {
         minWorkerCapabilityIdleTime = rto.getInt(MIN_WORKER_CAPABILITY_IDLE_TIME, 1000);
         gcOnWeakPtrFinalization = rto.getBoolean(GC_ON_WEAK_PTR_FINALIZATION, false);
         maxLocalSparks = rto.getInt(MAX_LOCAL_SPARKS, 4096);
+        localRunQueueSize = rto.getInt(LOCAL_RUN_QUEUE_SIZE, 256);
         selectorSetSize = rto.getInt(SELECTOR_SET_SIZE, 128);
+        ioManagerThreads = rto.getInt(IO_MANAGER_THREADS, 1);
+        spillDirectMemory = rto.getBoolean(SPILL_DIRECT_MEMORY, true);
+        largeObjectPoolSize = rto.getInt(LARGE_OBJECT_POOL_SIZE, 256);
+        byteArrayGCThreshold = rto.getInt(BYTE_ARRAY_GC_THRESHOLD, 64);
+        stmContentionManager = rto.getString(STM_CONTENTION_MANAGER, "backoff");
+        stmIrrevocableAfter = rto.getInt(STM_IRREVOCABLE_AFTER, 32);
+        stmRetryCheckTime = rto.getInt(STM_RETRY_CHECK_TIME, 100);
         tailCallThreshold = rto.getInt(TAIL_CALL_THRESHOLD, 400);
         // happy requires 650.
         // alex requires 400.
@@ -359,6 +505,7 @@ public class Runtime {
         debugMVar = rto.getBoolean(DEBUG_MVAR_PROPERTY, false);
         debugSTM = rto.getBoolean(DEBUG_STM_PROPERTY, false);
         debugMemoryManager = rto.getBoolean(DEBUG_MEMORY_MANAGER_PROPERTY, false);
+        debugCheckedMemoryAccess = rto.getBoolean(DEBUG_CHECKED_MEMORY_ACCESS_PROPERTY, false);
         debugExceptions = rto.getBoolean(DEBUG_EXCEPTIONS_PROPERTY, false);
         debugExceptionsVerbose = rto.getBoolean(DEBUG_EXCEPTIONSVERBOSE_PROPERTY, false);
         debugAsyncExceptions = rto.getBoolean(DEBUG_ASYNCEXCEPTIONS_PROPERTY, false);
@@ -65,6 +65,12 @@ public class RuntimeOptions {
         }
     }
 
+    public String getString(String key, String d) {
+        String val = p.getProperty(key);
+        if (val == null) return d;
+        return val.trim();
+    }
+
     public boolean getBoolean(String key, boolean d) {
         String val = p.getProperty(key);
         if (val == null) return d;
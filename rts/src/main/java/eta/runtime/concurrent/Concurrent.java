@@ -10,6 +10,7 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channel;
 import java.nio.channels.SelectionKey;
@@ -22,6 +23,7 @@ import eta.runtime.stg.Closure;
 import eta.runtime.stg.StgContext;
 import eta.runtime.io.MemoryManager;
 import eta.runtime.exception.Exception;
+import eta.runtime.message.MessageWakeup;
 import static eta.runtime.RuntimeLogging.*;
 import static eta.runtime.stg.TSO.*;
 import static eta.runtime.stg.TSO.WhyBlocked;
@@ -32,11 +34,17 @@ import static eta.runtime.stg.TSO.WhatNext.*;
 public class Concurrent {
     public static final int SPIN_COUNT = 1000;
 
-    /* Global Run Queue */
+    /* Global Run Queue
+
+       Each Capability owns a bounded work-stealing run queue where forked threads are
+       placed. This queue is only used when those local queues overflow or when a
+       thread has no Capability to return to. */
 
     public static final Queue<TSO> globalRunQueue = new ConcurrentLinkedQueue<TSO>();
 
-    public static volatile long globalRunQueueModifiedTime = 0;
+    /* The last time a thread was taken from another Capability or the Global Run
+       Queue. Used to decide when to spawn extra workers. */
+    public static volatile long globalRunQueueModifiedTime = System.nanoTime();
 
     public static void pushToGlobalRunQueue(TSO tso) {
         globalRunQueue.offer(tso);
@@ -58,7 +66,7 @@ public class Concurrent {
 
     public static Closure takeMVar(StgContext context, MVar mvar) {
         Capability cap = context.myCapability;
-        Closure val = mvar.tryTake();
+        Closure val = mvar.tryTake(cap);
         if (Runtime.debugMVar()) {
             debugMVar("takeMVar start: " + mvar.hashCode());
         }
@@ -66,12 +74,16 @@ public class Concurrent {
             TSO tso = context.currentTSO;
             tso.whyBlocked = BlockedOnMVar;
             tso.blockInfo  = mvar;
+            mvar.registerTaker(tso);
             try {
-                do {
+                /* The putter will wake us up, blockedLoop() only bounds the wait. */
+                while ((val = mvar.tryTake(cap, tso)) == null) {
                     cap.blockedLoop();
-                    val = mvar.tryTake();
-                } while (val == null);
+                }
             } finally {
+                if (val == null) {
+                    mvar.removeWaiter(cap, tso);
+                }
                 tso.whyBlocked = NotBlocked;
                 tso.blockInfo  = null;
             }
@@ -92,12 +104,15 @@ public class Concurrent {
             TSO tso = context.currentTSO;
             tso.whyBlocked = BlockedOnMVarRead;
             tso.blockInfo  = mvar;
+            mvar.registerReader(tso);
             try {
-                do {
+                while ((val = mvar.tryRead(cap, tso)) == null) {
                     cap.blockedLoop();
-                    val = mvar.tryRead();
-                } while (val == null);
+                }
             } finally {
+                if (val == null) {
+                    mvar.removeWaiter(cap, tso);
+                }
                 tso.whyBlocked = NotBlocked;
                 tso.blockInfo  = null;
             }
@@ -113,17 +128,20 @@ public class Concurrent {
             debugMVar("putMVar start: " + mvar.hashCode() + " " + val.hashCode());
         }
         Capability cap = context.myCapability;
-        boolean success = mvar.tryPut(val);
+        boolean success = mvar.tryPut(cap, val);
         if (!success) {
             TSO tso = context.currentTSO;
             tso.whyBlocked = BlockedOnMVar;
             tso.blockInfo  = mvar;
+            mvar.registerPutter(tso);
             try {
-                do {
+                while (!(success = mvar.tryPut(cap, tso, val))) {
                     cap.blockedLoop();
-                    success = mvar.tryPut(val);
-                } while (!success);
+                }
             } finally {
+                if (!success) {
+                    mvar.removeWaiter(cap, tso);
+                }
                 tso.blockInfo  = null;
                 tso.whyBlocked = NotBlocked;
             }
@@ -134,13 +152,13 @@ public class Concurrent {
     }
 
     public static Closure tryTakeMVar(StgContext context, MVar mvar) {
-        Closure value = mvar.tryTake();
+        Closure value = mvar.tryTake(context.myCapability);
         context.I1 = (value == null)? 0 : 1;
         return value;
     }
 
     public static int tryPutMVar(StgContext context, MVar mvar, Closure val) {
-        return mvar.tryPut(val)? 1 : 0;
+        return mvar.tryPut(context.myCapability, val)? 1 : 0;
     }
 
     public static Closure tryReadMVar(StgContext context, MVar mvar) {
@@ -154,21 +172,31 @@ public class Concurrent {
         TSO currentTSO = context.currentTSO;
         TSO tso = Runtime.createIOThread(closure);
         tso.addFlags(currentTSO.andFlags(TSO_BLOCKEX | TSO_INTERRUPTIBLE));
-        pushToGlobalRunQueue(tso);
+        cap.pushToLocalRunQueue(tso);
         cap.idleLoop(false);
         return tso;
     }
 
-    /* TODO: The scheduling policy in Eta is for TSOs to get grabbed by Capabilities
-             and keep executing them to completion which doesn't happen THAT
-             frequently.
+    /* The forked thread is pinned to the worker Capability at slot
+       `cpu mod maxWorkerCapabilities` and will not be stolen by other Capabilities.
 
-             Hence, it makes no sense to use `forkOn` in Eta since threads will
-             be bound to a given thread anyways. If you put multiple threads on
-             a single Capability, be warned that one of the threads may never run!
-     */
+       NOTE: Capabilities still run each TSO to completion, so if you put multiple
+             threads on a single Capability, they will run one after the other. */
     public static TSO forkOn(StgContext context, int cpu, Closure closure) {
-        return fork(context, closure);
+        Capability cap = context.myCapability;
+        TSO currentTSO = context.currentTSO;
+        TSO tso = Runtime.createIOThread(closure);
+        tso.addFlags(currentTSO.andFlags(TSO_BLOCKEX | TSO_INTERRUPTIBLE) | TSO_LOCKED);
+        final int n = Math.max(1, Capability.getNumCapabilities());
+        final Capability target = Capability.getPinned(((cpu % n) + n) % n);
+        if (target == cap) {
+            cap.appendToRunQueue(tso);
+        } else {
+            tso.cap = target;
+            cap.sendMessage(target, new MessageWakeup(tso));
+        }
+        cap.idleLoop(false);
+        return tso;
     }
 
     public static void yield(StgContext context) {
@@ -197,11 +225,17 @@ public class Concurrent {
                 ret = whyBlocked.getVal();
             }
         }
-        int cap = tso.cap.getId();
-        /* NOTE: The Eta RTS doesn't have a concept of TSO locking. It hurts more
-                 than helps performance due to the fact that we can't presently
-                 save/restore the Java stack. */
-        int locked = 0;
+        final Capability tsoCap = tso.cap;
+        int cap;
+        if (tsoCap == null) {
+            /* The thread is waiting in a run queue and hasn't been claimed yet. */
+            cap = 0;
+        } else if (tsoCap.isPinned()) {
+            cap = tsoCap.getPinnedSlot();
+        } else {
+            cap = tsoCap.getId();
+        }
+        int locked = tso.isFlagLocked()? 1 : 0;
         context.I1 = ret;
         context.I2 = cap;
         context.I3 = locked;
@@ -221,7 +255,11 @@ public class Concurrent {
         tso.setName(new String(bytes));
     }
 
-    /* Managing Java Futures */
+    /* Managing Java Futures
+
+       Futures that support completion callbacks wake up their waiting threads
+       directly. Plain futures are put in the futureMap and polled from the idle loops
+       of blocked Capabilities. */
 
     public static final Map<Future, TSO> futureMap
         = new ConcurrentHashMap<Future, TSO>();
@@ -248,22 +286,6 @@ public class Concurrent {
                     TSO                    tso    = entry.getValue();
                     if (future.isDone()) {
                         it.remove();
-                        Object    result    = null;
-                        java.lang.Exception exception = null;
-                        do {
-                            try {
-                                result    = future.get();
-                            } catch (CancellationException e) {
-                                exception = e;
-                            } catch (ExecutionException e) {
-                                exception = e;
-                            } catch (InterruptedException e) {
-                                /* TODO: Is this the right behavior? */
-                                continue;
-                            }
-                            break;
-                        } while (true);
-                        tso.blockInfo = new FutureResult(result, exception);
                         cap.tryWakeupThread(tso);
                     }
                 }
@@ -273,30 +295,73 @@ public class Concurrent {
         }
     }
 
-    public static Closure threadWaitFuture(StgContext context, Future future) {
-        Capability cap = context.myCapability;
-        TSO tso        = context.currentTSO;
-        tso.whyBlocked = BlockedOnFuture;
-        tso.blockInfo  = future;
-        do {
-            if (futureMap.get(future) == null) {
-                futureMap.put(future, tso);
+    public static Closure threadWaitFuture(StgContext context, Future<?> future) {
+        final Capability cap = context.myCapability;
+        final TSO tso        = context.currentTSO;
+        if (!future.isDone()) {
+            tso.whyBlocked = BlockedOnFuture;
+            tso.blockInfo  = future;
+            /* Callbacks can't be removed from a future, so the callback is disarmed
+               once the wait ends instead, in case it ends early because of an
+               asynchronous exception. */
+            final AtomicReference<Capability> waiter =
+                new AtomicReference<Capability>(cap);
+            try {
+                final boolean callback = FutureCallbacks.register(future, new Runnable() {
+                        @Override
+                        public void run() {
+                            final Capability waitingCap = waiter.get();
+                            if (waitingCap != null) {
+                                waitingCap.unpark();
+                            }
+                        }
+                    });
+                if (callback) {
+                    do {
+                        cap.parkedLoop();
+                    } while (!future.isDone());
+                } else {
+                    futureMap.put(future, tso);
+                    try {
+                        do {
+                            cap.blockedLoop();
+                        } while (!future.isDone());
+                    } finally {
+                        futureMap.remove(future);
+                    }
+                }
+            } finally {
+                waiter.set(null);
+                tso.whyBlocked = NotBlocked;
+                tso.blockInfo  = null;
             }
-            cap.blockedLoop();
-        } while (!future.isDone());
-        Object exception = null;
-        Object result    = null;
-        if (tso.blockInfo != null) {
-            FutureResult futureResult = (FutureResult) tso.blockInfo;
-            exception = futureResult.exception;
-            result    = futureResult.result;
-            tso.blockInfo = null;
         }
-        context.O1 = exception;
-        context.O2 = result;
+        final FutureResult futureResult = getFutureResult(future);
+        context.O1 = futureResult.exception;
+        context.O2 = futureResult.result;
         return null;
     }
 
+    /* The future must have completed. */
+    public static FutureResult getFutureResult(Future future) {
+        Object    result    = null;
+        java.lang.Exception exception = null;
+        do {
+            try {
+                result    = future.get();
+            } catch (CancellationException e) {
+                exception = e;
+            } catch (ExecutionException e) {
+                exception = e;
+            } catch (InterruptedException e) {
+                /* TODO: Is this the right behavior? */
+                continue;
+            }
+            break;
+        } while (true);
+        return new FutureResult(result, exception);
+    }
+
     /* Managing Scalable I/O */
     public static void threadWaitIO(StgContext context, Channel channel, int ops)
         throws IOException {
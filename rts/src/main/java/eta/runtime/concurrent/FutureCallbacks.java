@@ -0,0 +1,134 @@
+package eta.runtime.concurrent;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ConcurrentHashMap;
+
+import eta.runtime.Runtime;
+import static eta.runtime.RuntimeLogging.*;
+
+/* Attaches completion callbacks to the Future types that support them so that
+   threads waiting on them don't have to be found by scanning. Everything is done
+   reflectively since the runtime must load on Java 7 and can't depend on Guava.
+
+   Supported types:
+   - java.util.concurrent.CompletionStage (whenComplete)
+   - Any Future with a public addListener(Runnable, Executor) method, like Guava's
+     ListenableFuture. */
+public class FutureCallbacks {
+
+    private static final Class<?> completionStageClass =
+        loadClass("java.util.concurrent.CompletionStage");
+    private static final Class<?> biConsumerClass =
+        loadClass("java.util.function.BiConsumer");
+    private static final Method whenCompleteMethod =
+        (completionStageClass == null || biConsumerClass == null)? null :
+        getMethod(completionStageClass, "whenComplete", biConsumerClass);
+
+    /* Cache of the addListener methods, with NO_METHOD for the classes without one. */
+    private static final ConcurrentHashMap<Class<?>, Method> addListenerMethods
+        = new ConcurrentHashMap<Class<?>, Method>();
+    private static final Method NO_METHOD = getMethod(Object.class, "toString");
+
+    private static final Executor directExecutor = new Executor() {
+            @Override
+            public void execute(Runnable r) {
+                r.run();
+            }
+        };
+
+    /* Returns true if the callback will be run once the future completes. It may be run
+       immediately by the calling thread if the future has already completed. */
+    public static boolean register(final Future<?> future, final Runnable callback) {
+        try {
+            if (whenCompleteMethod != null && completionStageClass.isInstance(future)) {
+                final Object consumer =
+                    Proxy.newProxyInstance(FutureCallbacks.class.getClassLoader(),
+                                           new Class<?>[] { biConsumerClass },
+                                           new CallbackHandler(callback));
+                whenCompleteMethod.invoke(future, consumer);
+                return true;
+            }
+            final Method addListener = getAddListenerMethod(future.getClass());
+            if (addListener != null) {
+                addListener.invoke(future, callback, directExecutor);
+                return true;
+            }
+        } catch (ReflectiveOperationException e) {
+            if (Runtime.debugScheduler()) {
+                debugScheduler("Unable to register a callback on " + future + ": " + e);
+            }
+        }
+        return false;
+    }
+
+    private static Method getAddListenerMethod(final Class<?> clazz) {
+        Method method = addListenerMethods.get(clazz);
+        if (method == null) {
+            method = findAddListenerMethod(clazz);
+            if (method == null) method = NO_METHOD;
+            addListenerMethods.put(clazz, method);
+        }
+        return (method == NO_METHOD)? null : method;
+    }
+
+    /* The method has to be looked up in a public type since implementation classes
+       are frequently not public themselves. */
+    private static Method findAddListenerMethod(final Class<?> clazz) {
+        for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+            if (Modifier.isPublic(c.getModifiers())) {
+                final Method m = getMethod(c, "addListener", Runnable.class, Executor.class);
+                if (m != null) return m;
+            }
+            for (Class<?> i: c.getInterfaces()) {
+                final Method m = findAddListenerMethod(i);
+                if (m != null) return m;
+            }
+        }
+        return null;
+    }
+
+    private static Method getMethod(final Class<?> clazz, final String name,
+                                    final Class<?>... parameterTypes) {
+        try {
+            return clazz.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static Class<?> loadClass(final String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static class CallbackHandler implements InvocationHandler {
+        private final Runnable callback;
+
+        public CallbackHandler(final Runnable callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            final String name = method.getName();
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return "FutureCallback[" + callback + "]";
+            } else if (name.equals("accept")) {
+                callback.run();
+            }
+            return null;
+        }
+    }
+}
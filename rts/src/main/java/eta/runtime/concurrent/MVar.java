@@ -1,7 +1,9 @@
 package eta.runtime.concurrent;
 
+import java.util.ArrayDeque;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
+import eta.runtime.stg.Capability;
 import eta.runtime.stg.TSO;
 import eta.runtime.stg.Closure;
 import eta.runtime.stg.Value;
@@ -10,7 +12,19 @@ import static eta.runtime.util.UnsafeUtil.UNSAFE;
 
 public class MVar extends Value {
     public volatile Closure value;
-    public volatile TSO top;
+
+    /* The queues of blocked threads, which are only allocated once there is contention
+       on the MVar. They are protected by the MVar's monitor.
+
+       Takers and putters are served in FIFO order: only the thread at the head of its
+       queue may succeed. Readers take priority over takers, like in GHC. */
+    private ArrayDeque<TSO> takers;
+    private ArrayDeque<TSO> putters;
+    private ArrayDeque<TSO> readers;
+
+    /* The total number of blocked threads. While this is non-zero, all operations go
+       through the slow path so that blocked threads don't get starved. */
+    private volatile int waiting;
 
     public MVar(Closure value) {
         this.value = value;
@@ -22,64 +36,200 @@ public class MVar extends Value {
         return "MVar@" + hashCode() + "[" + ((val == null)? "_" : val.toString()) + "]";
     }
 
-    public Closure tryTake() {
-        Closure val = value;
-        if (val != null && casValue(val, null)) {
-            return val;
+    /* The fast paths check waiting again after they succeed since a thread may have
+       registered itself concurrently and already failed its attempt, in which case it
+       has to be woken up. */
+
+    public Closure tryTake(Capability cap) {
+        if (waiting == 0) {
+            Closure val = value;
+            if (val != null && casValue(val, null)) {
+                if (waiting != 0) {
+                    wakeUp(cap, peekPutter());
+                }
+                return val;
+            }
+            return null;
         }
-        return null;
+        return tryTake(cap, null);
     }
 
-    public boolean tryPut(Closure closure) {
-        if (value == null && casValue(null, closure)) {
-            return true;
+    public boolean tryPut(Capability cap, Closure closure) {
+        if (waiting == 0) {
+            if (value == null && casValue(null, closure)) {
+                if (waiting != 0) {
+                    wakeUp(cap, getPutWakeups());
+                }
+                return true;
+            }
+            return false;
         }
-        return false;
+        return tryPut(cap, null, closure);
     }
 
     public Closure tryRead() {
         return value;
     }
 
-    public final void registerListener(TSO tso) {
-        tso.link = TSO.TRANSIENT_LINK;
-        for (;;) {
-            TSO oldTop = top;
-            if (casTop(oldTop, tso)) {
-                /* TRANSIENT_LINK forms a synchronization point.
-                   When this cas succeeds, there's a narrow window
-                   where the cas from the getListeners() can happen
-                   and the client can try to traverse the listeners
-                   queue. Thus, a client is expected to check for link
-                   values of TRANSIENT_LINK before terminating a traversal. */
-                tso.link = oldTop;
-                return;
+    /* Blocking Operations
+
+       A thread that fails the fast path must register itself first and then call the
+       corresponding try* method with itself as the argument until it succeeds, so that
+       a wakeup can never be lost. If the thread gives up, it must deregister itself
+       with removeWaiter(). */
+
+    public final synchronized void registerTaker(TSO tso) {
+        if (takers == null) takers = new ArrayDeque<TSO>();
+        takers.offerLast(tso);
+        waiting++;
+    }
+
+    public final synchronized void registerPutter(TSO tso) {
+        if (putters == null) putters = new ArrayDeque<TSO>();
+        putters.offerLast(tso);
+        waiting++;
+    }
+
+    public final synchronized void registerReader(TSO tso) {
+        if (readers == null) readers = new ArrayDeque<TSO>();
+        readers.offerLast(tso);
+        waiting++;
+    }
+
+    /* If tso is null, this will only succeed if there are no blocked takers. */
+    public final Closure tryTake(Capability cap, TSO tso) {
+        final Closure val;
+        final TSO wakeup;
+        synchronized (this) {
+            val = value;
+            if (val == null || !isEmpty(readers) || !isHead(takers, tso)
+                || !casValue(val, null)) {
+                return null;
             }
+            if (tso != null) {
+                takers.pollFirst();
+                waiting--;
+            }
+            wakeup = peek(putters);
+        }
+        wakeUp(cap, wakeup);
+        return val;
+    }
+
+    private synchronized TSO peekPutter() {
+        return peek(putters);
+    }
+
+    /* If tso is null, this will only succeed if there are no blocked putters. */
+    public final boolean tryPut(Capability cap, TSO tso, Closure closure) {
+        final TSO[] wakeups;
+        synchronized (this) {
+            if (value != null || !isHead(putters, tso) || !casValue(null, closure)) {
+                return false;
+            }
+            if (tso != null) {
+                putters.pollFirst();
+                waiting--;
+            }
+            wakeups = getPutWakeups();
+        }
+        wakeUp(cap, wakeups);
+        return true;
+    }
+
+    /* Returns all the readers along with the first taker, which are the threads to
+       wake up once the MVar is filled. */
+    private synchronized TSO[] getPutWakeups() {
+        final int numReaders = (readers == null)? 0 : readers.size();
+        final TSO taker = peek(takers);
+        final TSO[] wakeups = new TSO[numReaders + ((taker == null)? 0 : 1)];
+        if (numReaders > 0) {
+            readers.toArray(wakeups);
         }
+        if (taker != null) {
+            wakeups[numReaders] = taker;
+        }
+        return wakeups;
     }
 
-    public final TSO getListeners() {
-        for (;;) {
-            TSO oldTop = top;
-            if (oldTop == null) {
+    public final Closure tryRead(Capability cap, TSO tso) {
+        final Closure val;
+        final TSO wakeup;
+        synchronized (this) {
+            val = value;
+            if (val == null) {
                 return null;
-            } else if (casTop(oldTop, null)) {
-                return oldTop;
             }
+            if (remove(readers, tso)) {
+                waiting--;
+            }
+            /* The last reader lets the takers go ahead. */
+            wakeup = isEmpty(readers)? peek(takers) : null;
+        }
+        wakeUp(cap, wakeup);
+        return val;
+    }
+
+    /* Removes a blocked thread from the queues, passing on a wakeup it may have
+       received to the next thread in line. */
+    public final void removeWaiter(Capability cap, TSO tso) {
+        TSO wakeup = null;
+        synchronized (this) {
+            final boolean full = value != null;
+            if (takers != null && takers.peekFirst() == tso) {
+                takers.pollFirst();
+                if (full && isEmpty(readers)) wakeup = takers.peekFirst();
+            } else if (putters != null && putters.peekFirst() == tso) {
+                putters.pollFirst();
+                if (!full) wakeup = putters.peekFirst();
+            } else if (remove(readers, tso)) {
+                if (full && readers.isEmpty()) wakeup = peek(takers);
+            } else if (!(remove(takers, tso) || remove(putters, tso))) {
+                return;
+            }
+            waiting--;
+        }
+        wakeUp(cap, wakeup);
+    }
+
+    private static boolean isHead(ArrayDeque<TSO> queue, TSO tso) {
+        final TSO head = peek(queue);
+        return head == null || head == tso;
+    }
+
+    private static boolean isEmpty(ArrayDeque<TSO> queue) {
+        return queue == null || queue.isEmpty();
+    }
+
+    private static TSO peek(ArrayDeque<TSO> queue) {
+        return (queue == null)? null : queue.peekFirst();
+    }
+
+    private static boolean remove(ArrayDeque<TSO> queue, TSO tso) {
+        return queue != null && queue.remove(tso);
+    }
+
+    private static void wakeUp(Capability cap, TSO[] tsos) {
+        for (TSO tso: tsos) {
+            wakeUp(cap, tso);
+        }
+    }
+
+    private static void wakeUp(Capability cap, TSO tso) {
+        /* A blocked thread always has a Capability since it's blocked in place. */
+        if (tso != null && tso.cap != null) {
+            cap.tryWakeupThread(tso);
         }
     }
 
     private static final boolean useUnsafe = UnsafeUtil.UNSAFE != null;
     private static long mvarValueOffset    = 0;
-    private static long mvarTopOffset      = 0;
 
     static {
         if (useUnsafe) {
             try {
                 mvarValueOffset = UNSAFE.objectFieldOffset
                     (MVar.class.getDeclaredField("value"));
-                mvarTopOffset = UNSAFE.objectFieldOffset
-                    (MVar.class.getDeclaredField("top"));
             } catch (ReflectiveOperationException e) {
                 e.printStackTrace();
             }
@@ -89,9 +239,6 @@ public class MVar extends Value {
     private static final AtomicReferenceFieldUpdater<MVar, Closure> valueUpdater
         = AtomicReferenceFieldUpdater
         .newUpdater(MVar.class, Closure.class, "value");
-    private static final AtomicReferenceFieldUpdater<MVar, TSO> topUpdater
-        = AtomicReferenceFieldUpdater
-        .newUpdater(MVar.class, TSO.class, "top");
 
     public final boolean casValue(Closure expected, Closure update) {
         if (useUnsafe) {
@@ -100,12 +247,4 @@ public class MVar extends Value {
             return valueUpdater.compareAndSet(this, expected, update);
         }
     }
-
-    public final boolean casTop(TSO expected, TSO update) {
-        if (useUnsafe) {
-            return UNSAFE.compareAndSwapObject(this, mvarTopOffset, expected, update);
-        } else {
-            return topUpdater.compareAndSet(this, expected, update);
-        }
-    }
 }
@@ -7,11 +7,23 @@ import static eta.runtime.RuntimeLogging.*;
 
 public class WorkerThread extends Thread {
 
+    /* Non-null when the Capability was created before the thread was started. */
+    private volatile Capability capability;
+
     public WorkerThread() {}
 
+    public void setCapability(final Capability capability) {
+        this.capability = capability;
+    }
+
     @Override
     public void run() {
-        final Capability worker = Capability.getLocal(true);
+        Capability worker = capability;
+        if (worker == null) {
+            worker = Capability.getLocal(true);
+        } else {
+            Capability.setLocal(worker);
+        }
         try {
             worker.schedule(null);
         } catch (Exception e) {
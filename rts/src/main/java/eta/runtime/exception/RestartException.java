@@ -0,0 +1,8 @@
+package eta.runtime.exception;
+
+/* Thrown when an STM transaction reads a value that is inconsistent with what it
+   has read before, so that it's aborted and run again by atomically. */
+public class RestartException extends StgException {
+    public static RestartException INSTANCE = new RestartException();
+    public RestartException() {}
+}
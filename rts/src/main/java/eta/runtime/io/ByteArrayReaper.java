@@ -0,0 +1,165 @@
+package eta.runtime.io;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eta.runtime.Runtime;
+import static eta.runtime.RuntimeLogging.*;
+
+/* Frees the off-heap memory of ByteArrays once they have been garbage collected.
+
+   Each ByteArray is tracked by a phantom reference that carries its address, and a
+   daemon thread frees the memory as soon as the reference is enqueued, so memory is
+   reclaimed even in programs that never block. The references must stay reachable
+   until then, so they're kept in intrusive doubly-linked lists that are striped to
+   reduce contention between allocating threads.
+
+   The JVM can't tell how much off-heap memory a ByteArray holds on to, so a GC is
+   requested once the ByteArrays allocated since the last request hold more than
+   Runtime.getByteArrayGCThreshold() megabytes. */
+public final class ByteArrayReaper {
+
+    /* Must be a power of 2. */
+    private static final int STRIPES = 16;
+    /* How often the reaper checks for GC requests while the queue is empty. */
+    private static final long POLL_MILLIS = 100;
+
+    private static final class Ref extends PhantomReference<ByteArray> {
+        private final long address;
+        private final int size;
+        private final Stripe stripe;
+        private Ref prev;
+        private Ref next;
+
+        private Ref(final ByteArray byteArray, final Stripe stripe) {
+            super(byteArray, queue);
+            this.address = byteArray.bufferAddress;
+            this.size    = byteArray.size;
+            this.stripe  = stripe;
+        }
+    }
+
+    private static final class Stripe {
+        private Ref head;
+
+        public synchronized void add(final Ref ref) {
+            ref.next = head;
+            if (head != null) {
+                head.prev = ref;
+            }
+            head = ref;
+        }
+
+        public synchronized void remove(final Ref ref) {
+            if (ref.prev != null) {
+                ref.prev.next = ref.next;
+            } else {
+                head = ref.next;
+            }
+            if (ref.next != null) {
+                ref.next.prev = ref.prev;
+            }
+            ref.prev = null;
+            ref.next = null;
+        }
+    }
+
+    private static final ReferenceQueue<ByteArray> queue = new ReferenceQueue<ByteArray>();
+    private static final Stripe[] stripes = new Stripe[STRIPES];
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /* The total size of the ByteArrays that haven't been freed yet. */
+    private static final AtomicLong liveBytes = new AtomicLong();
+    /* A GC is requested once liveBytes reaches this. */
+    private static volatile long nextGCBytes = -1;
+    private static volatile boolean gcRequested;
+
+    private static final AtomicBoolean started = new AtomicBoolean();
+
+    public static void register(final ByteArray byteArray) {
+        if (byteArray.bufferAddress == 0) return;
+        final Stripe stripe =
+            stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)];
+        stripe.add(new Ref(byteArray, stripe));
+        if (!started.get() && started.compareAndSet(false, true)) {
+            nextGCBytes = getGCThresholdBytes();
+            final Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        reaperLoop();
+                    }
+                }, "eta-byte-array-reaper");
+            t.setDaemon(true);
+            t.start();
+        }
+        final long live = liveBytes.addAndGet(byteArray.size);
+        final long next = nextGCBytes;
+        if (next > 0 && live >= next) {
+            gcRequested = true;
+        }
+    }
+
+    /* Frees the memory of the ByteArrays that have been collected so far without
+       waiting. Only called by Capabilities. */
+    public static void reap() {
+        Ref ref;
+        while ((ref = (Ref) queue.poll()) != null) {
+            release(ref, true);
+        }
+    }
+
+    public static long getLiveBytes() {
+        return liveBytes.get();
+    }
+
+    private static void release(final Ref ref, final boolean local) {
+        ref.stripe.remove(ref);
+        liveBytes.addAndGet(-ref.size);
+        if (local) {
+            MemoryManager.free(ref.address);
+        } else {
+            /* The reaper isn't a Capability, so the owner of the memory frees it. */
+            MemoryManager.getHeap().sendFree(ref.address);
+        }
+    }
+
+    private static void reaperLoop() {
+        for (;;) {
+            try {
+                final Ref ref = (Ref) queue.remove(POLL_MILLIS);
+                if (ref != null) {
+                    release(ref, false);
+                }
+                if (gcRequested) {
+                    gcRequested = false;
+                    final long live = liveBytes.get();
+                    nextGCBytes = live + getGCThresholdBytes();
+                    if (Runtime.debugMemoryManager()) {
+                        debugMemoryManager("Requesting a GC with " + live +
+                                           " bytes held by ByteArrays.");
+                    }
+                    System.gc();
+                }
+            } catch (InterruptedException e) {
+                // Keep going!
+            } catch (RuntimeException e) {
+                if (Runtime.debugMemoryManager()) {
+                    debugMemoryManager("Failed to free a ByteArray: " + e);
+                }
+            }
+        }
+    }
+
+    private static long getGCThresholdBytes() {
+        return (long) Runtime.getByteArrayGCThreshold() << 20;
+    }
+
+    private ByteArrayReaper() {}
+}
@@ -1,17 +1,12 @@
 package eta.runtime.io;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
-
-import java.lang.ref.ReferenceQueue;
-import java.lang.ref.PhantomReference;
-
+import eta.runtime.stg.Capability;
 import eta.runtime.stg.Closure;
 import eta.runtime.stg.StgContext;
 import eta.runtime.stg.TSO;
 import eta.runtime.thunk.Ap2Upd;
 import eta.runtime.thunk.SelectorThunk;
+import static eta.runtime.stg.TSO.WhyBlocked.*;
 
 public class IO {
 
@@ -28,18 +23,29 @@ public class IO {
         return null;
     }
 
+    /* The delay is in microseconds. The thread runs on the Java stack of its Capability,
+       so it can't be taken off it and re-enqueued. Instead, the Capability parks until
+       the deadline, which keeps short delays precise. It keeps processing messages in
+       the meantime, and the threads in its work queue can still be stolen by other
+       Capabilities. */
     public static void delay(StgContext context, int time) {
-        TSO tso = context.currentTSO;
-        boolean immune = tso.suspendInterrupts(true);
-        // Clear any existing interrupts.
-        Thread.interrupted();
+        final Capability cap = context.myCapability;
+        if (time <= 0) {
+            cap.idleLoop(false);
+            return;
+        }
+        final TSO tso = context.currentTSO;
+        long remaining = time * 1000L;
+        final long deadline = System.nanoTime() + remaining;
+        tso.whyBlocked = BlockedOnDelay;
         try {
-            Thread.sleep(time / 1000, (time % 1000) * 1000);
-        } catch (InterruptedException ie) {
-            // If interrupted, run the idleLoop to see why.
-            context.myCapability.idleLoop(false);
+            do {
+                cap.parkedLoop(remaining);
+                remaining = deadline - System.nanoTime();
+            } while (remaining > 0);
+        } finally {
+            tso.whyBlocked = NotBlocked;
         }
-        tso.resumeInterrupts(immune);
     }
 
     public static Closure atomicModifyMutVar(StgContext context, MutVar mv, Closure f) {
@@ -69,39 +75,14 @@ public class IO {
     }
 
     /* Managing ByteArrays */
-    public static ReferenceQueue<ByteArray> byteArrayRefQueue = new ReferenceQueue<ByteArray>();
-    public static AtomicBoolean byteArrayFreeLock = new AtomicBoolean();
-
-    public static Map<PhantomReference<ByteArray>, Long> byteArrayRefMap
-        = new ConcurrentHashMap<PhantomReference<ByteArray>, Long>();
-
     public static void recordByteArray(ByteArray byteArray) {
-        long address = byteArray.bufferAddress;
-        if (address != 0) {
-            PhantomReference<ByteArray> byteArrayRef
-                = new PhantomReference<ByteArray>(byteArray, byteArrayRefQueue);
-            byteArrayRefMap.put(byteArrayRef, address);
-        }
+        ByteArrayReaper.register(byteArray);
     }
 
-    @SuppressWarnings("unchecked")
+    /* The reaper thread frees the memory of collected ByteArrays on its own, but
+       Capabilities that are idle can help out. */
     public static void checkForGCByteArrays() {
-        /* This check can be skipped if another thread is doing it. */
-        if (byteArrayFreeLock.compareAndSet(false, true)) {
-            try {
-                PhantomReference<ByteArray> ref;
-                while ((ref = (PhantomReference<ByteArray>) byteArrayRefQueue.poll())
-                       != null) {
-                    Long address = byteArrayRefMap.get(ref);
-                    if (address != null) {
-                        MemoryManager.free(address);
-                    }
-                    byteArrayRefMap.remove(ref);
-                }
-            } finally {
-                byteArrayFreeLock.set(false);
-            }
-        }
+        ByteArrayReaper.reap();
     }
 
     /* Managing Non-Blocking I/O */
@@ -5,69 +5,240 @@ import java.nio.channels.Selector;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.CancelledKeyException;
-import java.util.concurrent.locks.LockSupport;
+import java.nio.channels.ClosedSelectorException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import eta.runtime.Runtime;
 import eta.runtime.stg.TSO;
 import eta.runtime.stg.Capability;
-import eta.runtime.util.MPSCReferenceQueue;
 import eta.runtime.exception.Exception;
 import static eta.runtime.stg.TSO.WhyBlocked;
 import static eta.runtime.stg.TSO.WhyBlocked.*;
 import static eta.runtime.RuntimeLogging.*;
 
-public class IOManager {
-    public Selector selector;
-    public final MPSCReferenceQueue<TSO> messages =
-        new MPSCReferenceQueue<TSO>();
-    public long eventSequence = 0;
-    public volatile Capability owner;
+/* The IOManager is a small pool of event loop threads, each owning a Selector. A
+   channel is always serviced by the same event loop and stays registered with its
+   Selector across waits, only having its interest set updated.
 
-    public IOManager(final Capability cap, final Selector selector) {
+   Threads that wait on a channel are blocked in place on their Capability, which is
+   unparked once the channel is ready. */
+public class IOManager implements Runnable {
+
+    /* The event loops, started on first use. */
+    private static volatile IOManager[] managers;
+
+    private static final Object managersLock = new Object();
+
+    public static IOManager[] getManagers() throws IOException {
+        IOManager[] ms = managers;
+        if (ms == null) {
+            synchronized (managersLock) {
+                ms = managers;
+                if (ms == null) {
+                    final int n = Math.max(1, Runtime.getIOManagerThreads());
+                    ms = new IOManager[n];
+                    for (int i = 0; i < n; i++) {
+                        ms[i] = new IOManager(Selector.open());
+                    }
+                    for (int i = 0; i < n; i++) {
+                        final Thread t = new Thread(ms[i], "eta-io-manager-" + i);
+                        t.setDaemon(true);
+                        t.start();
+                    }
+                    managers = ms;
+                }
+            }
+        }
+        return ms;
+    }
+
+    public final Selector selector;
+    private final Queue<IORequest> pending = new ConcurrentLinkedQueue<IORequest>();
+
+    public IOManager(final Selector selector) {
         this.selector = selector;
-        this.owner    = cap;
     }
 
-    public static IOManager create(final Capability cap) throws IOException {
-        return new IOManager(cap, Selector.open());
+    public static final class IORequest {
+        public final Capability cap;
+        public final TSO tso;
+        public final SelectableChannel channel;
+        public final int ops;
+        public volatile boolean done;
+        public volatile boolean cancelled;
+
+        public IORequest(final Capability cap, final TSO tso,
+                         final SelectableChannel channel, final int ops) {
+            this.cap     = cap;
+            this.tso     = tso;
+            this.channel = channel;
+            this.ops     = ops;
+        }
+
+        public void complete() {
+            done = true;
+            cap.unpark();
+        }
+
+        @Override
+        public String toString() {
+            return "IORequest[" + tso + ", " + channel + ", ops=" + ops + "]";
+        }
     }
 
-    public final void registerIO(final Capability cap, final TSO tso,
-                                 final SelectableChannel channel, final int ops)
+    public static void registerIO(final Capability cap, final TSO tso,
+                                  final SelectableChannel channel, final int ops)
         throws IOException {
+        final IOManager[] ms;
+        try {
+            ms = getManagers();
+        } catch (IOException e) {
+            if (Runtime.debugIO()) {
+                debugIO("Selector provider not available on this platform.");
+            }
+            return;
+        }
+        final IOManager manager =
+            ms[(System.identityHashCode(channel) & Integer.MAX_VALUE) % ms.length];
+        final IORequest request = new IORequest(cap, tso, channel, ops);
         tso.whyBlocked = toWhyBlocked(ops);
+        tso.blockInfo  = channel;
         try {
-            if (owner != cap) {
-                tso.blockInfo = channel;
-                messages.write(tso);
-                while (tso.whyBlocked != NotBlocked) {
-                    /* TODO: Verify this condition */
-                    LockSupport.park();
-                }
-            } else {
-                eventLoopOneShot(cap, tso, channel, ops);
+            manager.submit(request);
+            while (!request.done) {
+                cap.parkedLoop();
             }
         } finally {
+            if (!request.done) {
+                /* We were interrupted by an exception, so withdraw the request. */
+                request.cancelled = true;
+                manager.submit(request);
+            }
             tso.whyBlocked = NotBlocked;
+            tso.blockInfo  = null;
         }
     }
 
-    public final void eventLoopOneShot(final Capability cap, final TSO tso,
-                                       final SelectableChannel channel, final int ops)
-        throws IOException {
-        final Object result = safeRegister(channel, ops, tso);
-        if (result instanceof Throwable) {
-            if (Runtime.debugIO()) {
-                debugIO(tso + " threw an exception while attempting to select on " +
-                        channel + " with interestOps " + ops + ":\n" +
-                        Exception.exceptionToString((Throwable) result));
+    private void submit(final IORequest request) {
+        pending.offer(request);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (selector.isOpen()) {
+            try {
+                processPending();
+                /* Re-registering may have already selected some keys. */
+                if (selector.selectedKeys().isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+                processSelected();
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                if (Runtime.debugIO()) {
+                    debugIO("Event loop failed to select:\n" + Exception.exceptionToString(e));
+                }
             }
-            return;
         }
-        final SelectionKey sk = (SelectionKey) result;
-        int numSelected  = 0;
-        while ((numSelected = selector.select()) <= 0);
-        sk.cancel();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<IORequest> getWaiters(final SelectionKey key) {
+        return (List<IORequest>) key.attachment();
+    }
+
+    /* Registers the interest of new requests and withdraws cancelled ones. */
+    private void processPending() {
+        IORequest request;
+        while ((request = pending.poll()) != null) {
+            SelectionKey key = request.channel.keyFor(selector);
+            if (request.cancelled) {
+                if (key != null && key.isValid()) {
+                    final List<IORequest> waiters = getWaiters(key);
+                    waiters.remove(request);
+                    updateInterestOps(key, waiters);
+                }
+                continue;
+            }
+            if (key == null || !key.isValid()) {
+                final Object result = safeRegister(request.channel, 0,
+                                                   new ArrayList<IORequest>());
+                if (result instanceof Throwable) {
+                    if (Runtime.debugIO()) {
+                        debugIO(request.tso + " threw an exception while attempting to select on " +
+                                request.channel + " with interestOps " + request.ops + ":\n" +
+                                Exception.exceptionToString((Throwable) result));
+                    }
+                    request.complete();
+                    continue;
+                }
+                key = (SelectionKey) result;
+            }
+            final List<IORequest> waiters = getWaiters(key);
+            waiters.add(request);
+            if (!updateInterestOps(key, waiters)) {
+                waiters.remove(request);
+                request.complete();
+            }
+        }
+    }
+
+    /* Wakes up the waiters of all the ready channels in a single pass. */
+    private void processSelected() {
+        final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            final SelectionKey key = it.next();
+            it.remove();
+            final List<IORequest> waiters = getWaiters(key);
+            int readyOps;
+            try {
+                readyOps = key.readyOps();
+            } catch (CancelledKeyException e) {
+                /* The channel was closed, let the waiters find out for themselves. */
+                readyOps = ~0;
+            }
+            final Iterator<IORequest> wit = waiters.iterator();
+            while (wit.hasNext()) {
+                final IORequest request = wit.next();
+                if (request.cancelled) {
+                    wit.remove();
+                } else if ((request.ops & readyOps) != 0) {
+                    wit.remove();
+                    if (Runtime.debugIOVerbose()) {
+                        debugIO("Ready: " + request);
+                    }
+                    request.complete();
+                }
+            }
+            updateInterestOps(key, waiters);
+        }
+    }
+
+    /* Returns false if the key has been cancelled, waking up all of its waiters. */
+    private static boolean updateInterestOps(final SelectionKey key,
+                                             final List<IORequest> waiters) {
+        int ops = 0;
+        for (IORequest request: waiters) {
+            ops |= request.ops;
+        }
+        try {
+            key.interestOps(ops);
+            return true;
+        } catch (CancelledKeyException e) {
+            for (IORequest request: waiters) {
+                request.complete();
+            }
+            waiters.clear();
+            return false;
+        }
     }
 
     /* Returns either a Throwable or a SelectionKey */
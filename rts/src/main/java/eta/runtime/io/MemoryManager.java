@@ -3,10 +3,15 @@ package eta.runtime.io;
 import java.util.Arrays;
 import java.util.concurrent.ConcurrentHashMap;
 
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 import eta.runtime.Runtime;
 import eta.runtime.stg.Capability;
@@ -25,10 +30,18 @@ public class MemoryManager {
     private static final int MANAGED_HEAP_BLOCK_SIZE   = 4096;
     /* Should be equal to cache line size in bytes. */
     private static final int MANAGED_HEAP_MINIBLOCK_SIZE = 64;
+    /* Allocations of up to a miniblock are served from slabs. Slots come in
+       power-of-2 sizes, so the ones above half a miniblock take a full miniblock
+       either way, but a slab slot doesn't touch the allocation vector. */
+    private static final int MANAGED_HEAP_SLAB_THRESHOLD = MANAGED_HEAP_MINIBLOCK_SIZE;
+    /* Allocations beyond this get their own buffer outside of the nurseries. */
+    private static final int MANAGED_HEAP_LARGE_OBJECT_THRESHOLD = 1 << 20;
     private static ManagedHeap globalManagedHeap =
         new ManagedHeap(MANAGED_HEAP_NURSERY_SIZE,
                         MANAGED_HEAP_BLOCK_SIZE,
-                        MANAGED_HEAP_MINIBLOCK_SIZE);
+                        MANAGED_HEAP_MINIBLOCK_SIZE,
+                        MANAGED_HEAP_SLAB_THRESHOLD,
+                        MANAGED_HEAP_LARGE_OBJECT_THRESHOLD);
 
     /* The shared empty buffer */
     public final static long nullAddress = 0L;
@@ -56,6 +69,52 @@ public class MemoryManager {
         return address;
     }
 
+    /* Returns false if the buffer must be reallocated to be resized. */
+    public static boolean resizeBuffer(long address, int n) {
+        final boolean resized = globalManagedHeap.resizeBuffer(address, n);
+        if (Runtime.debugMemoryManager()) {
+            debugMemoryManager((resized? "Resized" : "Unable to resize") +
+                               " buffer at address " + address + " to " + n + " bytes");
+        }
+        return resized;
+    }
+
+    /** Memory-Mapped Files **/
+
+    /* Maps size bytes of the file starting at offset into the address space and
+       returns the address of the mapping, which is released with free(). The memory is
+       read-only unless writable is set, in which case writes go through to the file.
+       Files larger than 2GB have to be mapped in pieces. */
+    public static long mapFile(FileChannel channel, long offset, int size, boolean writable)
+        throws IOException {
+        if (size < 0) {
+            throw new IllegalArgumentException("Mapped size must be positive");
+        }
+        if (size == 0) {
+            return nullAddress;
+        }
+        final MappedByteBuffer buffer =
+            channel.map(writable? FileChannel.MapMode.READ_WRITE :
+                                  FileChannel.MapMode.READ_ONLY, offset, size);
+        final long address = globalManagedHeap.allocateLargeObject(buffer);
+        if (Runtime.debugMemoryManager()) {
+            debugMemoryManager("Mapping " + size + " bytes at offset " + offset +
+                               " of " + channel + " at address " + address);
+        }
+        return address;
+    }
+
+    /* The mapping stays valid after the file is closed. */
+    public static long mapFile(String path, long offset, int size, boolean writable)
+        throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(path, writable? "rw" : "r");
+        try {
+            return mapFile(file.getChannel(), offset, size, writable);
+        } finally {
+            file.close();
+        }
+    }
+
     /** Freeing Off-Heap Memory **/
 
     public static void maybeFreeNativeMemory() {
@@ -63,6 +122,9 @@ public class MemoryManager {
            has been garbage collected. */
         IO.checkForGCByteArrays();
 
+        /* Free the memory that other threads have asked this Capability to free. */
+        Capability.getLocal().processFreeMessages();
+
         /* Check for any WeakPtr keys that have been GC'd and run both the
            Eta finalizers and Java finalizers. */
         WeakPtr.checkForGCWeakPtrs();
@@ -87,7 +149,9 @@ public class MemoryManager {
         globalManagedHeap =
             new ManagedHeap(MANAGED_HEAP_NURSERY_SIZE,
                             MANAGED_HEAP_BLOCK_SIZE,
-                            MANAGED_HEAP_MINIBLOCK_SIZE);
+                            MANAGED_HEAP_MINIBLOCK_SIZE,
+                            MANAGED_HEAP_SLAB_THRESHOLD,
+                        MANAGED_HEAP_LARGE_OBJECT_THRESHOLD);
     }
 
     /** Byte Buffer API to MemoryManager **/
@@ -127,11 +191,26 @@ public class MemoryManager {
         return getBlock(address).getBoundedBuffer(address);
     }
 
+    /* Returns the native address of the memory referred to by the address so that it can
+       be accessed directly with Unsafe, or 0 if it's not in a direct block or raw memory
+       access is disabled with eta.debug.checkedMemoryAccess.
+
+       Multi-byte values are stored in big-endian order. */
+    public static long getNativeAddress(long address) {
+        if (address == nullAddress) {
+            return 0;
+        }
+        return getBlock(address).getNativeAddress(address);
+    }
+
     public static int allocatedSize(long address) {
         return getBlock(address).allocatedSize(address);
     }
 
     /** Read APIs **/
+
+    /* These use raw memory access unless eta.debug.checkedMemoryAccess is set, so
+       reading past the end of an allocation is only detected in that mode. */
     public static byte get(long address) {
         return getBlock(address).get(address);
     }
@@ -329,11 +408,38 @@ public class MemoryManager {
         return copy(srcAddress, 0, destAddress, 0, size);
     }
 
+    /* The bulk operations below work on 8 bytes at a time with absolute getLong/putLong
+       and finish off the remaining bytes individually. They leave the buffers
+       positioned as if the bytes had been processed one by one. */
+    private static final long ONES = 0x0101010101010101L;
+    private static final long LOWS = 0x7F7F7F7F7F7F7F7FL;
+
+    /* Returns the index of the first non-zero byte of a word in memory order. */
+    private static int firstByte(long word, ByteOrder order) {
+        return ((order == ByteOrder.BIG_ENDIAN)?
+                Long.numberOfLeadingZeros(word) :
+                Long.numberOfTrailingZeros(word)) >>> 3;
+    }
+
+    /* Returns a word with the high bit set in exactly the bytes of word that are zero.
+       Unlike the usual (x - 0x01..) & ~x & 0x80.. test, borrows can't flag the bytes
+       that follow a zero byte, so it works in either byte order. */
+    private static long zeroBytes(long word) {
+        return ~(((word & LOWS) + LOWS) | word | LOWS);
+    }
+
     public static ByteBuffer set(long address, byte val, int size) {
         ByteBuffer buffer = getBoundedBuffer(address);
-        while (size-- != 0) {
-            buffer.put(val);
+        final int position = buffer.position();
+        final long pattern = (val & 0xFFL) * ONES;
+        int i = 0;
+        for (; i + 8 <= size; i += 8) {
+            buffer.putLong(position + i, pattern);
+        }
+        for (; i < size; i++) {
+            buffer.put(position + i, val);
         }
+        ((Buffer)buffer).position(position + size);
         return buffer;
     }
 
@@ -357,11 +463,32 @@ public class MemoryManager {
     public static ByteBuffer move(long srcAddress, long destAddress, int size) {
         ByteBuffer src  = getBoundedBuffer(srcAddress);
         ByteBuffer dest = getBoundedBuffer(destAddress);
-        ByteBuffer copy = ByteBuffer.allocate(size);
-        ((Buffer)src).limit(src.position() + size);
-        copy.put(src);
-        ((Buffer)copy).flip();
-        dest.put(copy);
+        final int srcPos  = src.position();
+        final int destPos = dest.position();
+        if (destAddress + size <= srcAddress || srcAddress + size <= destAddress) {
+            ((Buffer)src).limit(srcPos + size);
+            dest.put(src);
+            return dest;
+        }
+        /* The regions overlap, so they're in the same buffer. A word is always read in
+           full before it's written, so copying away from the overlap is safe. */
+        int i;
+        if (destAddress < srcAddress) {
+            for (i = 0; i + 8 <= size; i += 8) {
+                dest.putLong(destPos + i, src.getLong(srcPos + i));
+            }
+            for (; i < size; i++) {
+                dest.put(destPos + i, src.get(srcPos + i));
+            }
+        } else {
+            for (i = size; i >= 8; i -= 8) {
+                dest.putLong(destPos + i - 8, src.getLong(srcPos + i - 8));
+            }
+            while (i-- > 0) {
+                dest.put(destPos + i, src.get(srcPos + i));
+            }
+        }
+        ((Buffer)dest).position(destPos + size);
         return dest;
     }
 
@@ -372,13 +499,30 @@ public class MemoryManager {
     }
 
     public static int compare(ByteBuffer b1, ByteBuffer b2, int n)  {
-        while (n-- != 0) {
-            int a = b1.get() & 0xFF;
-            int b = b2.get() & 0xFF;
+        final int p1 = b1.position();
+        final int p2 = b2.position();
+        int i = 0;
+        if (b1.order() == b2.order()) {
+            for (; i + 8 <= n; i += 8) {
+                final long diff = b1.getLong(p1 + i) ^ b2.getLong(p2 + i);
+                if (diff != 0) {
+                    /* The byte loop picks up the mismatch right away. */
+                    i += firstByte(diff, b1.order());
+                    break;
+                }
+            }
+        }
+        for (; i < n; i++) {
+            int a = b1.get(p1 + i) & 0xFF;
+            int b = b2.get(p2 + i) & 0xFF;
             if (a != b) {
+                ((Buffer)b1).position(p1 + i + 1);
+                ((Buffer)b2).position(p2 + i + 1);
                 return a - b;
             }
         }
+        ((Buffer)b1).position(p1 + n);
+        ((Buffer)b2).position(p2 + n);
         return 0;
     }
 
@@ -408,11 +552,24 @@ public class MemoryManager {
     }
 
     public static int chrIndex(ByteBuffer b, byte c, int n) {
-        for (int i = 0; i < n ; i++) {
-            byte nxt = b.get();
-            if (nxt == c)
-              return i;
+        final int position = b.position();
+        final long pattern = (c & 0xFFL) * ONES;
+        int i = 0;
+        for (; i + 8 <= n; i += 8) {
+            final long matches = zeroBytes(b.getLong(position + i) ^ pattern);
+            if (matches != 0) {
+                i += firstByte(matches, b.order());
+                ((Buffer)b).position(position + i + 1);
+                return i;
+            }
+        }
+        for (; i < n; i++) {
+            if (b.get(position + i) == c) {
+                ((Buffer)b).position(position + i + 1);
+                return i;
+            }
         }
+        ((Buffer)b).position(position + n);
         return -1;
     }
 
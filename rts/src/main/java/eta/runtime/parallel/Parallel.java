@@ -1,8 +1,5 @@
 package eta.runtime.parallel;
 
-import java.util.Deque;
-import java.util.concurrent.LinkedBlockingDeque;
-
 import eta.runtime.Runtime;
 import eta.runtime.stg.Capability;
 import eta.runtime.stg.Closure;
@@ -11,8 +8,9 @@ import eta.runtime.stg.StgContext;
 import static eta.runtime.RuntimeLogging.debugScheduler;
 
 public class Parallel {
-    public static final Deque<Closure> globalSparkPool = new LinkedBlockingDeque<Closure>(Runtime.getMaxLocalSparks());
-    public static final SparkCounters globalSparkStats = new SparkCounters();
+
+    /* The counters of the worker capabilities that have terminated. */
+    private static final SparkCounters retiredSparkStats = new SparkCounters();
 
     static {
         Runtime.parallelClassLoaded = true;
@@ -29,49 +27,53 @@ public class Parallel {
         }
     }
 
+    /* Returns the number of sparks in the local spark pool. */
     public static int numSparks(StgContext context) {
-        return globalSparkPoolSize();
+        return context.myCapability.sparkPoolSize();
     }
 
+    /* Sparks are taken LIFO from the local pool and, if that's empty, stolen FIFO
+       from the pools of the other capabilities. */
     public static Closure findSpark(Capability cap) {
-        if (!cap.emptyRunQueue()) {
+        /* Let the spark thread finish so that real threads can run. */
+        if (!cap.emptyRunQueue() || cap.localRunQueueSize() > 0) {
             return null;
         }
-        boolean retry;
-        do {
-            retry = false;
-            Closure spark = globalSparkPool.pollLast();
-            while (spark != null && spark.getEvaluated() != null) {
-                globalSparkStats.fizzled.getAndIncrement();
-                spark = globalSparkPool.pollLast();
-            }
-            if (spark != null) {
-                globalSparkStats.converted.getAndIncrement();
-                return spark;
-            }
-            if (!emptyGlobalSparkPool()) {
-                retry = true;
-            }
-        } while(retry);
+        Closure spark = cap.popSpark();
+        if (spark == null) {
+            spark = cap.stealSpark();
+        }
+        if (spark != null) {
+            cap.sparkStats.converted++;
+            return spark;
+        }
         if (Runtime.debugScheduler()) {
             debugScheduler("No Sparks stolen.");
         }
         return null;
     }
 
-    public static boolean emptyGlobalSparkPool() {
-        return globalSparkPool.isEmpty();
-    }
-
     public static int globalSparkPoolSize() {
-        return globalSparkPool.size();
+        return Capability.sparkPoolsSize();
     }
 
     public static boolean anySparks() {
-        return !emptyGlobalSparkPool();
+        return Capability.anySparks();
+    }
+
+    /* Adds up the spark counters of all the capabilities. */
+    public static SparkCounters getSparkStats() {
+        final SparkCounters stats = new SparkCounters();
+        synchronized (retiredSparkStats) {
+            stats.add(retiredSparkStats);
+        }
+        Capability.addSparkStats(stats);
+        return stats;
     }
 
-    public static boolean submitSpark(Closure spark) {
-        return globalSparkPool.offerFirst(spark);
+    public static void retireSparkStats(SparkCounters stats) {
+        synchronized (retiredSparkStats) {
+            retiredSparkStats.add(stats);
+        }
     }
 }
@@ -1,11 +1,29 @@
 package eta.runtime.parallel;
 
-import java.util.concurrent.atomic.AtomicLong;
-
+/* Each Capability keeps its own counters, so they are only ever written by the
+   thread owning the Capability. Use Parallel.getSparkStats() to get the totals. */
 public class SparkCounters {
-    public AtomicLong created    = new AtomicLong();
-    public AtomicLong dud        = new AtomicLong();
-    public AtomicLong overflowed = new AtomicLong();
-    public AtomicLong converted  = new AtomicLong();
-    public AtomicLong fizzled    = new AtomicLong();
+    public volatile long created;
+    public volatile long dud;
+    public volatile long overflowed;
+    public volatile long converted;
+    public volatile long fizzled;
+    /* The number of times a spark thread was scheduled to run sparks. */
+    public volatile long activations;
+
+    public void add(SparkCounters other) {
+        created    += other.created;
+        dud        += other.dud;
+        overflowed += other.overflowed;
+        converted  += other.converted;
+        fizzled    += other.fizzled;
+        activations += other.activations;
+    }
+
+    @Override
+    public String toString() {
+        return "SparkCounters[created=" + created + ", dud=" + dud
+            + ", overflowed=" + overflowed + ", converted=" + converted
+            + ", fizzled=" + fizzled + ", activations=" + activations + "]";
+    }
 }
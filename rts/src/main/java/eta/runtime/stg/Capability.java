@@ -6,10 +6,12 @@ import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.io.IOException;
 import java.nio.channels.SelectableChannel;
 import java.lang.ref.WeakReference;
 import eta.runtime.util.MPSCReferenceQueue;
+import eta.runtime.util.WorkStealingDeque;
 
 import eta.runtime.Runtime;
 import eta.runtime.io.IOManager;
@@ -25,8 +27,12 @@ import eta.runtime.message.MessageThrowTo;
 import eta.runtime.message.MessageShutdown;
 import eta.runtime.message.MessageWakeup;
 import eta.runtime.parallel.Parallel;
+import eta.runtime.parallel.SparkCounters;
 import eta.runtime.storage.Block;
+import eta.runtime.storage.BlockPool;
 import eta.runtime.storage.LocalHeap;
+import eta.runtime.storage.ManagedHeap;
+import eta.runtime.stm.TransactionEntryPool;
 import eta.runtime.thunk.BlockingQueue;
 import eta.runtime.thunk.Thunk;
 import eta.runtime.thunk.UpdateInfo;
@@ -76,10 +82,141 @@ public final class Capability implements LocalHeap {
 
     /* Remove worker from the queue and re-cycle its id. */
     public void removeWorker() {
+        if (isPinned()) {
+            removePinned(this);
+        }
+        removeStealable(this);
+        /* Hand over any leftover work so that it doesn't get lost. */
+        TSO tso;
+        while ((tso = workQueue.pop()) != null) {
+            tso.cap = null;
+            Concurrent.pushToGlobalRunQueue(tso);
+        }
+        /* Leftover sparks are dropped since they are only hints. */
+        Parallel.retireSparkStats(sparkStats);
+        /* Blocks freed from now on go straight to the global pool. */
+        final BlockPool pool = blockPool;
+        blockPool = null;
+        MemoryManager.getHeap().releaseBlockPool(pool);
+        /* Senders process their own frees once they see that the worker exited, so
+           handle the ones that were sent before that. */
+        exited = true;
+        synchronized (this) {
+            processFreeMessages();
+        }
         workerCapabilitiesSize.getAndDecrement();
         workerCapabilities.read(workerSequence);
     }
 
+    /* These are the pinned worker capabilities, indexed by the slot that was requested
+       by forkOn#. Threads forked onto a slot will only ever run on its capability. */
+    private static volatile Capability[] pinnedCapabilities = new Capability[0];
+
+    private static final Object pinnedLock = new Object();
+
+    /* Returns the worker capability pinned to the given slot, spawning a fresh worker
+       thread for it if needed. */
+    public static Capability getPinned(final int slot) {
+        Capability[] caps = pinnedCapabilities;
+        if (slot < caps.length && caps[slot] != null) return caps[slot];
+        synchronized (pinnedLock) {
+            caps = pinnedCapabilities;
+            if (slot < caps.length && caps[slot] != null) return caps[slot];
+            final WorkerThread thread = new WorkerThread();
+            final Capability cap = Capability.create(thread, true);
+            cap.pinnedSlot = slot;
+            cap.addWorker();
+            addStealable(cap);
+            final Capability[] newCaps =
+                new Capability[Math.max(slot + 1, caps.length)];
+            System.arraycopy(caps, 0, newCaps, 0, caps.length);
+            newCaps[slot] = cap;
+            pinnedCapabilities = newCaps;
+            if (Runtime.debugScheduler()) {
+                debugScheduler("Spawning " + cap + " pinned to slot " + slot);
+            }
+            thread.setCapability(cap);
+            thread.start();
+            return cap;
+        }
+    }
+
+    private static void removePinned(final Capability cap) {
+        synchronized (pinnedLock) {
+            final Capability[] caps = pinnedCapabilities;
+            final int slot = cap.pinnedSlot;
+            if (slot < caps.length && caps[slot] == cap) {
+                final Capability[] newCaps = caps.clone();
+                newCaps[slot] = null;
+                pinnedCapabilities = newCaps;
+            }
+        }
+    }
+
+    public final boolean isPinned() {
+        return pinnedSlot >= 0;
+    }
+
+    public final int getPinnedSlot() {
+        return pinnedSlot;
+    }
+
+    /* These are all the capabilities whose local run queues can be stolen from.
+       This is a copy-on-write array since it's read far more often than it's
+       modified. */
+    private static volatile Capability[] stealableCapabilities = new Capability[0];
+
+    private static final Object stealableLock = new Object();
+
+    private static void addStealable(final Capability cap) {
+        synchronized (stealableLock) {
+            final Capability[] caps = stealableCapabilities;
+            final Capability[] newCaps = new Capability[caps.length + 1];
+            System.arraycopy(caps, 0, newCaps, 0, caps.length);
+            newCaps[caps.length] = cap;
+            stealableCapabilities = newCaps;
+        }
+    }
+
+    /* Returns false if the capability was already removed. */
+    private static boolean removeStealable(final Capability cap) {
+        synchronized (stealableLock) {
+            final Capability[] caps = stealableCapabilities;
+            final int n = caps.length;
+            for (int i = 0; i < n; i++) {
+                if (caps[i] == cap) {
+                    final Capability[] newCaps = new Capability[n - 1];
+                    System.arraycopy(caps, 0, newCaps, 0, i);
+                    System.arraycopy(caps, i + 1, newCaps, i, n - i - 1);
+                    stealableCapabilities = newCaps;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /* Bound capabilities aren't told when their thread exits, so the capabilities
+       that steal from them remove them once they notice. The leftover work is handed
+       over to the global run queue. Since the owner is gone, it's taken from the
+       stealing end. */
+    private static void retireStealable(final Capability cap) {
+        if (!removeStealable(cap)) return;
+        final WorkStealingDeque<TSO> queue = cap.workQueue;
+        while (!queue.isEmpty()) {
+            final TSO tso = queue.steal();
+            if (tso != null) {
+                tso.cap = null;
+                Concurrent.pushToGlobalRunQueue(tso);
+            }
+        }
+        /* Leftover sparks are dropped since they are only hints. */
+        Parallel.retireSparkStats(cap.sparkStats);
+        if (Runtime.debugScheduler()) {
+            debugScheduler("Retired " + cap + " since its thread exited");
+        }
+    }
+
     /* Returns true if the runtime is being used in the concurrent mode. */
     public static boolean singletonCapabilities() {
         return /* WARNING: This check should be changed if the
@@ -88,8 +225,52 @@ public final class Capability implements LocalHeap {
             && workerCapabilitiesSize() == 0;
     }
 
-    /* This object is used to sychronize among all the idle worker capabilities. */
-    private static Object blockedLock = new Object();
+    /* Idle worker capabilities park themselves after pushing an IdleNode on this
+       lock-free stack so that producers can wake up exactly as many as needed. */
+    private static final AtomicReference<IdleNode> idleStack =
+        new AtomicReference<IdleNode>();
+
+    private static final class IdleNode {
+        public static final int WAITING   = 0;
+        public static final int WOKEN     = 1;
+        public static final int CANCELLED = 2;
+
+        public final Thread thread;
+        public final AtomicInteger state = new AtomicInteger(WAITING);
+        public IdleNode next;
+
+        public IdleNode(final Thread thread) {
+            this.thread = thread;
+        }
+    }
+
+    private static void pushIdleNode(final IdleNode node) {
+        for (;;) {
+            IdleNode top = idleStack.get();
+            /* Prune the nodes of capabilities that stopped waiting on their own. */
+            while (top != null && top.state.get() != IdleNode.WAITING) {
+                if (idleStack.compareAndSet(top, top.next)) {
+                    top = top.next;
+                } else {
+                    top = idleStack.get();
+                }
+            }
+            node.next = top;
+            if (idleStack.compareAndSet(top, node)) return;
+        }
+    }
+
+    private static IdleNode popIdleNode() {
+        for (;;) {
+            final IdleNode top = idleStack.get();
+            if (top == null) return null;
+            if (idleStack.compareAndSet(top, top.next)) {
+                if (top.state.compareAndSet(IdleNode.WAITING, IdleNode.WOKEN)) {
+                    return top;
+                }
+            }
+        }
+    }
 
     /* The current number of worker capabilities waiting for work */
     private static AtomicInteger idleCapabilitiesSize = new AtomicInteger();
@@ -108,6 +289,11 @@ public final class Capability implements LocalHeap {
         return getLocal(false);
     }
 
+    /* Link an already created capability to the current thread. */
+    public static void setLocal(final Capability cap) {
+        myCapability.set(cap);
+    }
+
     public static Capability getLocal(final boolean worker) {
         Capability cap = myCapability.get();
         if (cap == null) {
@@ -126,30 +312,48 @@ public final class Capability implements LocalHeap {
     }
 
     private int id;
+    private int pinnedSlot = -1;
     private final boolean worker;
     private final WeakReference<Thread> thread;
     private final StgContext context = new StgContext();
     private Deque<TSO> runQueue = new LinkedList<TSO>();
+    /* Forked threads go here first. Only this Capability pushes and pops, other
+       Capabilities steal from the other end when they run out of work. */
+    private final WorkStealingDeque<TSO> workQueue =
+        new WorkStealingDeque<TSO>(Runtime.getLocalRunQueueSize());
+    /* State for the random victim selection when stealing */
+    private int stealSeed;
+    /* Sparks created by par# on this Capability. Works like the workQueue. */
+    private final WorkStealingDeque<Closure> sparks =
+        new WorkStealingDeque<Closure>(Runtime.getMaxLocalSparks());
+    public final SparkCounters sparkStats = new SparkCounters();
+    private TSO sparkThread;
     private Deque<Message> inbox = new ConcurrentLinkedDeque<Message>();
-    private IOManager ioManager;
 
     /* MemoryManager related stuff */
     private Block activeDirectBlock;
     private Block activeHeapBlock;
     private Block activeDirectSuperBlock;
     private Block activeHeapSuperBlock;
+    private volatile BlockPool blockPool = new BlockPool();
+    private Block[] slabs = new Block[ManagedHeap.NUM_SLAB_CLASSES << 1];
 
     private MPSCLongQueue freeMessages = new MPSCLongQueue();
     private long freeSequence;
+    private volatile boolean exited;
 
     private long workerSequence;
 
+    /* STM related stuff */
+    private TransactionEntryPool transactionEntryPool = new TransactionEntryPool();
+
     private volatile boolean interrupt;
     private volatile Capability link;
 
     public Capability(final Thread t, final boolean worker) {
         this.thread    = new WeakReference<Thread>(t);
         this.worker    = worker;
+        this.stealSeed = System.identityHashCode(this) | 1;
     }
 
     /* Create a capability, updating the global runtime state accordingly. */
@@ -162,24 +366,12 @@ public final class Capability implements LocalHeap {
             cap.id = capabilities.readIndex(sequence);
             capabilitiesSize.getAndIncrement();
         }
+        addStealable(cap);
         return cap;
     }
 
-    /* Create a capability, initializing a fresh IOManager */
     public static Capability create(final Thread t, final boolean worker) {
-        Capability cap = new Capability(t, worker);
-        IOManager ioManager;
-        try {
-            ioManager = IOManager.create(cap);
-        } catch (IOException e) {
-            ioManager = null;
-        }
-        cap.setIOManager(ioManager);
-        return cap;
-    }
-
-    public void setIOManager(final IOManager ioManager) {
-        this.ioManager = ioManager;
+        return new Capability(t, worker);
     }
 
     public final StgContext getContext() {
@@ -269,11 +461,18 @@ public final class Capability implements LocalHeap {
             prevWhatNext = t.whatNext;
 
             if (prevWhatNext == ThreadYield || prevWhatNext == ThreadBlock) {
-                if (prevWhatNext == ThreadYield) {
-                    Concurrent.pushToGlobalRunQueue(t);
-                }
                 t.whatNext = ThreadRun;
-                t.cap = null;
+                if (t.isFlagLocked()) {
+                    /* Pinned threads never leave their Capability. */
+                    if (prevWhatNext == ThreadYield) {
+                        appendToRunQueue(t);
+                    }
+                } else {
+                    t.cap = null;
+                    if (prevWhatNext == ThreadYield) {
+                        pushToLocalRunQueue(t);
+                    }
+                }
             } else {
                 /* Thread is done executing, awaken the blocked exception queue. */
                 awakenBlockedExceptionQueue(t);
@@ -302,14 +501,20 @@ public final class Capability implements LocalHeap {
     private static final int SCHEDULE_RETURN   = 2;
 
     private int tryFindWork() {
-        tryStealGlobalRunQueue();
+        if (isPinned()) {
+            return waitForPinnedWork();
+        }
+        if (popLocalRunQueue() == null && tryStealGlobalRunQueue() == null) {
+            tryStealCapabilities();
+        }
         if (emptyRunQueue()) {
             activateSpark();
             if (emptyRunQueue()) {
-                if (worker && workerCapabilitiesSize() >
+                if (worker && !isPinned() && workerCapabilitiesSize() >
                     Runtime.getMaxWorkerCapabilities()) {
                     /* Terminate this Worker Capability if we've exceeded the
-                        limit of maxWorkerCapabilities. */
+                        limit of maxWorkerCapabilities. Pinned capabilities are
+                        kept alive since threads may be forked onto them later. */
                     return SCHEDULE_RETURN;
                 }
 
@@ -317,19 +522,23 @@ public final class Capability implements LocalHeap {
                     debugScheduler("Blocked!");
                 }
 
-                idleCapabilitiesSize.getAndIncrement();
-                try {
-                    synchronized (blockedLock) {
-                        /* No condition because spurious wakeups are OK - if there is no
-                           work to be done, we'll end up here again. */
-                        try {
-                            blockedLock.wait();
-                        } catch (InterruptedException e) {
-
+                if (!spinForWork()) {
+                    idleCapabilitiesSize.getAndIncrement();
+                    final IdleNode node = new IdleNode(Thread.currentThread());
+                    try {
+                        pushIdleNode(node);
+                        /* Re-check after publishing the node so that a wakeup isn't
+                           lost. Spurious wakeups are OK - if there is no work to be
+                           done, we'll end up here again. */
+                        if (!globalWorkToDo() && emptyInbox()) {
+                            LockSupport.park(this);
                         }
+                    } finally {
+                        node.state.compareAndSet(IdleNode.WAITING, IdleNode.CANCELLED);
+                        idleCapabilitiesSize.getAndDecrement();
+                        /* Messages are processed on the next iteration. */
+                        Thread.interrupted();
                     }
-                } finally {
-                    idleCapabilitiesSize.getAndDecrement();
                 }
                 if (Runtime.debugScheduler()) {
                     debugScheduler("Unblocked!");
@@ -340,6 +549,50 @@ public final class Capability implements LocalHeap {
         return SCHEDULE_DEFAULT;
     }
 
+    /* Pinned Capabilities are reserved for the threads forked onto them, so they don't
+       take work from the global run queue, other Capabilities or the spark pool.
+       They don't register as idle either, since a wakeup meant for a Capability that
+       would pick up that work would be lost on them. The threads they fork are
+       still run here first unless another Capability steals them. */
+    private int waitForPinnedWork() {
+        popLocalRunQueue();
+        if (!emptyRunQueue()) {
+            return SCHEDULE_DEFAULT;
+        }
+        if (Runtime.debugScheduler()) {
+            debugScheduler("Blocked!");
+        }
+        /* Threads are sent here as messages, which interrupt the thread of this
+           Capability, so a message that arrives after the check isn't missed. */
+        if (emptyInbox()) {
+            LockSupport.park(this);
+        }
+        /* Messages are processed on the next iteration. */
+        Thread.interrupted();
+        if (Runtime.debugScheduler()) {
+            debugScheduler("Unblocked!");
+        }
+        return SCHEDULE_CONTINUE;
+    }
+
+    /* The number of iterations to spin before parking, adapted to how often spinning
+       has paid off in the past. */
+    private int spinBudget = Concurrent.SPIN_COUNT;
+
+    private boolean spinForWork() {
+        final int budget = spinBudget;
+        for (int i = 0; i < budget; i++) {
+            if (globalWorkToDo() || !emptyInbox()) {
+                spinBudget = Math.min(budget << 1, Concurrent.SPIN_COUNT);
+                return true;
+            }
+        }
+        spinBudget = Math.max(budget >> 1, MIN_SPIN_COUNT);
+        return false;
+    }
+
+    private static final int MIN_SPIN_COUNT = 16;
+
     /* Run Queue */
 
     public final boolean emptyRunQueue() {
@@ -393,28 +646,121 @@ public final class Capability implements LocalHeap {
         }
     }
 
+    /* The spark thread drains sparks until it runs out of them or until real threads
+       arrive. Once it completes, its stacks are reused by the thread of the next
+       activation. */
     public final void createSparkThread() {
-        final TSO tso = Runtime.createIOThread(Closures.runSparks);
-        if (Runtime.debugScheduler()) {
-            debugScheduler("Creating a Spark " + tso);
+        TSO tso = sparkThread;
+        if (tso != null && tso.canBeReused()) {
+            tso = tso.reuseFor(Closures.evalLazyIO(Closures.runSparks));
+            sparkThread = tso;
+            if (Runtime.debugScheduler()) {
+                debugScheduler("Reusing Spark " + tso);
+            }
+        } else {
+            tso = Runtime.createIOThread(Closures.runSparks);
+            sparkThread = tso;
+            if (Runtime.debugScheduler()) {
+                debugScheduler("Creating a Spark " + tso);
+            }
         }
+        sparkStats.activations++;
         appendToRunQueue(tso);
     }
 
     public final boolean newSpark(Closure p) {
         if (p.getEvaluated() == null) {
-            if (Parallel.submitSpark(p)) {
-                Parallel.globalSparkStats.created.getAndIncrement();
+            if (sparks.push(p)) {
+                sparkStats.created++;
             } else {
-                Parallel.globalSparkStats.overflowed.getAndIncrement();
+                sparkStats.overflowed++;
             }
         } else {
-            Parallel.globalSparkStats.dud.getAndIncrement();
+            sparkStats.dud++;
         }
         idleLoop(false);
         return true;
     }
 
+    /* Pops the most recently created spark from the local pool, discarding the ones
+       that have already been evaluated. */
+    public final Closure popSpark() {
+        Closure spark;
+        while ((spark = sparks.pop()) != null && spark.getEvaluated() != null) {
+            sparkStats.fizzled++;
+        }
+        return spark;
+    }
+
+    /* Steals the oldest spark from the pool of another capability, starting from a
+       random victim and discarding the sparks that have already been evaluated. */
+    public final Closure stealSpark() {
+        final Capability[] caps = stealableCapabilities;
+        final int n = caps.length;
+        if (n <= 1) return null;
+        final int start = (nextStealRandom() & Integer.MAX_VALUE) % n;
+        for (int i = 0; i < n; i++) {
+            final Capability victim = caps[(start + i) % n];
+            if (victim == this) continue;
+            Closure spark;
+            while ((spark = victim.sparks.steal()) != null) {
+                if (spark.getEvaluated() == null) {
+                    stealSparkBatch(victim);
+                    return spark;
+                }
+                sparkStats.fizzled++;
+            }
+        }
+        return null;
+    }
+
+    private static final int MAX_SPARK_STEAL_BATCH = 32;
+
+    /* Moves up to half of the victim's sparks into the local pool so that the next
+       few getSpark# calls don't have to go looking for a victim again. */
+    private void stealSparkBatch(final Capability victim) {
+        final int batch = Math.min(victim.sparks.size() / 2, MAX_SPARK_STEAL_BATCH);
+        for (int i = 0; i < batch; i++) {
+            final Closure spark = victim.sparks.steal();
+            if (spark == null) break;
+            if (spark.getEvaluated() != null) {
+                sparkStats.fizzled++;
+            } else if (!sparks.push(spark)) {
+                /* Can't happen since the local pool was empty. */
+                sparkStats.overflowed++;
+                break;
+            }
+        }
+    }
+
+    public final int sparkPoolSize() {
+        return sparks.size();
+    }
+
+    public static boolean anySparks() {
+        final Capability[] caps = stealableCapabilities;
+        for (int i = 0; i < caps.length; i++) {
+            if (!caps[i].sparks.isEmpty()) return true;
+        }
+        return false;
+    }
+
+    public static int sparkPoolsSize() {
+        final Capability[] caps = stealableCapabilities;
+        int size = 0;
+        for (int i = 0; i < caps.length; i++) {
+            size += caps[i].sparks.size();
+        }
+        return size;
+    }
+
+    public static void addSparkStats(final SparkCounters stats) {
+        final Capability[] caps = stealableCapabilities;
+        for (int i = 0; i < caps.length; i++) {
+            stats.add(caps[i].sparkStats);
+        }
+    }
+
     /* Lazy Blackholing */
 
     public final void threadPaused(TSO tso) {
@@ -491,7 +837,11 @@ public final class Capability implements LocalHeap {
             switch (tso.whyBlocked) {
                 case BlockedOnMVar:
                 case BlockedOnMVarRead:
-                    /* TODO: fix this */
+                case BlockedOnFuture:
+                    /* The thread is blocked in place and has already been interrupted
+                       by the delivery of this wakeup, so it will retry the operation
+                       on its own. */
+                    setNotBlocked = false;
                     break;
                 case BlockedOnMsgThrowTo:
                     MessageThrowTo msg = (MessageThrowTo) tso.blockInfo;
@@ -641,18 +991,91 @@ public final class Capability implements LocalHeap {
         return sendMessage(this, MessageShutdown.getInstance());
     }
 
-    /* Globan Run Queue Stealing */
+    /* Local Run Queue */
+
+    /* Pushes the TSO onto this Capability's work-stealing queue, overflowing into the
+       Global Run Queue if it's full. Should only be called from the thread that owns
+       this Capability. */
+    public final void pushToLocalRunQueue(TSO tso) {
+        if (!workQueue.push(tso)) {
+            Concurrent.pushToGlobalRunQueue(tso);
+        }
+    }
+
+    public final int localRunQueueSize() {
+        return workQueue.size();
+    }
+
+    public final TSO popLocalRunQueue() {
+        final TSO tso = workQueue.pop();
+        if (tso != null) {
+            tso.cap = this;
+            tryWakeupThread(tso);
+        }
+        return tso;
+    }
+
+    /* Global Run Queue Stealing */
 
     public final TSO tryStealGlobalRunQueue() {
         TSO tso = Concurrent.stealFromGlobalRunQueue();
         if (tso != null) {
-            Concurrent.globalRunQueueModifiedTime = System.currentTimeMillis();
+            Concurrent.globalRunQueueModifiedTime = System.nanoTime();
             tso.cap = this;
             tryWakeupThread(tso);
         }
         return tso;
     }
 
+    /* Capability Stealing */
+
+    /* Makes a single pass over all the other capabilities, starting from a random
+       victim, and steals the oldest thread from the first non-empty run queue. */
+    public final TSO tryStealCapabilities() {
+        final Capability[] caps = stealableCapabilities;
+        final int n = caps.length;
+        if (n <= 1) return null;
+        final int start = (nextStealRandom() & Integer.MAX_VALUE) % n;
+        for (int i = 0; i < n; i++) {
+            final Capability victim = caps[(start + i) % n];
+            if (victim == this) continue;
+            if (!victim.worker && !victim.isAlive()) {
+                retireStealable(victim);
+                continue;
+            }
+            final TSO tso = victim.workQueue.steal();
+            if (tso != null) {
+                if (Runtime.debugScheduler()) {
+                    debugScheduler("Stole " + tso + " from " + victim);
+                }
+                Concurrent.globalRunQueueModifiedTime = System.nanoTime();
+                tso.cap = this;
+                tryWakeupThread(tso);
+                return tso;
+            }
+        }
+        return null;
+    }
+
+    /* Xorshift */
+    private int nextStealRandom() {
+        int x = stealSeed;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        stealSeed = x;
+        return x;
+    }
+
+    public static int localRunQueuesSize() {
+        final Capability[] caps = stealableCapabilities;
+        int size = 0;
+        for (int i = 0; i < caps.length; i++) {
+            size += caps[i].workQueue.size();
+        }
+        return size;
+    }
+
     /* Idle Loop */
 
     public final void idleLoop(final boolean blocked) {
@@ -728,15 +1151,49 @@ public final class Capability implements LocalHeap {
         idleLoop(true);
         LockSupport.parkNanos(nanos);
         interrupted();
+        /* Clear the interrupt status so that the next park isn't a no-op. Any pending
+           messages will be processed below. */
+        Thread.interrupted();
         idleLoop(false);
     }
 
+    /* Parked Loop
+
+       Like blockedLoop, but waits until this Capability is explicitly unparked by
+       unpark() or interrupted by a message. */
+    public final void parkedLoop() {
+        idleLoop(true);
+        LockSupport.park(this);
+        interrupted();
+        Thread.interrupted();
+        idleLoop(false);
+    }
+
+    /* Like parkedLoop, but also returns once nanos have elapsed, so that the checks
+       done while blocked are run again. */
+    public final void parkedLoop(long nanos) {
+        idleLoop(true);
+        LockSupport.parkNanos(this, nanos);
+        interrupted();
+        Thread.interrupted();
+        idleLoop(false);
+    }
+
+    public final void unpark() {
+        final Thread t = thread.get();
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
     public static boolean globalWorkToDo() {
-        return !Concurrent.emptyGlobalRunQueue() || Parallel.anySparks();
+        return !Concurrent.emptyGlobalRunQueue() || localRunQueuesSize() > 0
+            || Parallel.anySparks();
     }
 
     public static int globalWorkSize() {
-        return Concurrent.getGlobalRunQueueSize() + ((Parallel.anySparks())? 1 : 0);
+        return Concurrent.getGlobalRunQueueSize() + localRunQueuesSize()
+             + ((Parallel.anySparks())? 1 : 0);
     }
 
     public final void manageOrSpawnWorkers() {
@@ -764,32 +1221,50 @@ public final class Capability implements LocalHeap {
     public static void unblockCapabilities(int n) {
         final int limit = Math.min(n, idleCapabilitiesSize());
         for (int i = 0; i < limit; i++) {
-            synchronized (blockedLock) {
-                blockedLock.notify();
-            }
+            final IdleNode node = popIdleNode();
+            if (node == null) break;
+            LockSupport.unpark(node.thread);
         }
     }
 
     public final void setActiveBlock(Block block, boolean direct, boolean supr) {
         if (direct) {
             if (supr) {
-                block.setLink(activeDirectSuperBlock);
-                activeDirectSuperBlock = block;
+                activeDirectSuperBlock = block.pushOnto(activeDirectSuperBlock);
             } else {
-                block.setLink(activeDirectBlock);
-                activeDirectBlock = block;
+                activeDirectBlock = block.pushOnto(activeDirectBlock);
             }
         } else {
             if (supr) {
-                block.setLink(activeHeapSuperBlock);
-                activeHeapSuperBlock = block;
+                activeHeapSuperBlock = block.pushOnto(activeHeapSuperBlock);
             } else {
-                block.setLink(activeHeapBlock);
-                activeHeapBlock = block;
+                activeHeapBlock = block.pushOnto(activeHeapBlock);
             }
         }
     }
 
+    /* The most recently allocated block of each kind is kept even if it's free since
+       it's where the next allocation will most likely go. */
+    public final boolean detachBlock(Block block) {
+        return block.unlink();
+    }
+
+    public final BlockPool getBlockPool() {
+        return blockPool;
+    }
+
+    public final TransactionEntryPool getTransactionEntryPool() {
+        return transactionEntryPool;
+    }
+
+    public final Block getSlabs(int sizeClass, boolean direct) {
+        return slabs[(sizeClass << 1) | (direct? 1 : 0)];
+    }
+
+    public final void setSlabs(int sizeClass, boolean direct, Block slabs) {
+        this.slabs[(sizeClass << 1) | (direct? 1 : 0)] = slabs;
+    }
+
     /* The Capability will attempt to allocate the data with the local resources
        it has. */
     public final long allocateLocal(int miniblocks, boolean direct, boolean _supr) {
@@ -809,7 +1284,7 @@ public final class Capability implements LocalHeap {
         return address;
     }
 
-    private final void processFreeMessages() {
+    public final void processFreeMessages() {
         while (freeMessages.canRead(freeSequence)) {
             MemoryManager.getHeap().free(freeMessages.read());
             freeSequence++;
@@ -818,13 +1293,7 @@ public final class Capability implements LocalHeap {
 
     public final void registerIO(final TSO tso, final SelectableChannel channel, final int ops)
         throws IOException {
-        if (ioManager == null) {
-            if (Runtime.debugIO()) {
-                debugIO("Selector provider not available on this platform.");
-            }
-        } else {
-            ioManager.registerIO(this, tso, channel, ops);
-        }
+        IOManager.registerIO(this, tso, channel, ops);
     }
 
     public final void cleanupLocalHeap() {
@@ -832,17 +1301,38 @@ public final class Capability implements LocalHeap {
         activeHeapBlock        = null;
         activeDirectSuperBlock = null;
         activeHeapSuperBlock   = null;
+        blockPool              = new BlockPool();
+        slabs                  = new Block[ManagedHeap.NUM_SLAB_CLASSES << 1];
         freeMessages           = new MPSCLongQueue();
         freeSequence           = 0;
     }
 
     @Override
     public String toString() {
-        String workerString = worker? "[Worker]" : "";
+        String workerString = worker? (isPinned()? "[Pinned:" + pinnedSlot + "]"
+                                                 : "[Worker]") : "";
         return "Capability" + workerString + "[" + id + "]";
     }
 
+    /* Whether the thread this Capability belongs to is still running. */
+    public final boolean isAlive() {
+        if (exited) return false;
+        final Thread t = thread.get();
+        return t != null && t.isAlive();
+    }
+
+    /* Sends a free of an address in one of this Capability's blocks. If the thread of
+       the Capability has exited, nobody else will process the message, so the sender
+       does it. The check comes after the write so that a worker that exits
+       concurrently either sees the message when it drains the queue, or the sender
+       sees that it exited. The lock keeps concurrent senders from reading the queue
+       at the same time. */
     public void free(long address) {
         freeMessages.write(address);
+        if (!isAlive()) {
+            synchronized (this) {
+                processFreeMessages();
+            }
+        }
     }
 }
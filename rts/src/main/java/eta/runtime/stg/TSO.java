@@ -1,5 +1,6 @@
 package eta.runtime.stg;
 
+import java.util.Arrays;
 import java.util.Queue;
 import java.util.LinkedList;
 import java.util.HashMap;
@@ -7,6 +8,7 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import eta.runtime.concurrent.MVar;
 import eta.runtime.exception.Exception;
 import eta.runtime.message.MessageThrowTo;
 import eta.runtime.stm.STM;
@@ -43,8 +45,8 @@ public final class TSO extends BlackHole {
     public HashMap<String,Object> extensibleState = new HashMap<String,Object>();
 
     /* Temporary per execution */
-    public UpdateInfoStack updateInfoStack = new UpdateInfoStack();
-    public Closure[] contStack = new Closure[6];
+    public UpdateInfoStack updateInfoStack;
+    public Closure[] contStack;
     public int contStackTop;
     public Closure currentCont;
 
@@ -90,7 +92,13 @@ public final class TSO extends BlackHole {
     }
 
     public TSO(Closure closure) {
-        this.closure = closure;
+        this(closure, new UpdateInfoStack(), new Closure[6]);
+    }
+
+    private TSO(Closure closure, UpdateInfoStack updateInfoStack, Closure[] contStack) {
+        this.closure         = closure;
+        this.updateInfoStack = updateInfoStack;
+        this.contStack       = contStack;
     }
 
     @Override
@@ -223,7 +231,9 @@ public final class TSO extends BlackHole {
                 break;
             case BlockedOnMVar:
             case BlockedOnMVarRead:
-                /* TODO: Figure out MVar story */
+                if (blockInfo instanceof MVar) {
+                    ((MVar) blockInfo).removeWaiter(Capability.getLocal(), this);
+                }
                 break;
             case BlockedOnBlackHole:
                 break;
@@ -290,6 +300,25 @@ public final class TSO extends BlackHole {
         updateInfoStack.clear();
     }
 
+    /* Returns true if this thread has finished cleanly and nobody is waiting on it,
+       so that its stacks can be reused with reuseFor(). */
+    public final boolean canBeReused() {
+        return whatNext == ThreadComplete && blockedExceptions.isEmpty()
+            && blockingQueues.isEmpty();
+    }
+
+    /* Returns a new thread that runs the given closure with the stacks of this
+       completed thread, which keeps its identity so that existing references to it,
+       like ThreadIds, never observe the new thread. */
+    public final TSO reuseFor(Closure closure) {
+        Arrays.fill(contStack, null);
+        reset();
+        final TSO tso = new TSO(closure, updateInfoStack, contStack);
+        this.currentCont  = null;
+        this.contStackTop = 0;
+        return tso;
+    }
+
     public final void pushCont(Closure action) {
         int len = contStackTop + 1;
         if (len > contStack.length) extendContStack();
@@ -0,0 +1,206 @@
+package eta.runtime.stm;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import eta.runtime.Runtime;
+import eta.runtime.stg.Capability;
+import eta.runtime.stg.TSO;
+import static eta.runtime.RuntimeLogging.*;
+
+/* Decides what an atomically block does when its transaction fails to commit. The
+   policy is chosen with Runtime.getSTMContentionManager(). In every hook, attempts
+   is the number of times the transaction has been aborted so far.
+
+   Independently of the policy, a transaction that has been aborted
+   Runtime.getSTMIrrevocableAfter() times becomes irrevocable: no other transaction
+   that writes can commit while it runs, so it can't be starved. Only one transaction
+   can be irrevocable at a time. */
+public abstract class ContentionManager {
+
+    /* Called before a transaction that has written to TVars tries to commit. */
+    public void beforeCommit(Capability cap, TSO tso, int attempts) {
+        enterCommit(cap, tso);
+    }
+
+    /* Called after the commit, whether or not it succeeded. */
+    public void afterCommit(TSO tso, int attempts) {
+        exitCommit();
+    }
+
+    /* Called after a failed commit, before the transaction is run again. */
+    public void onAbort(Capability cap, TSO tso, int attempts) {
+        leaveIrrevocable(tso);
+        backoff(cap, tso, attempts);
+        final int irrevocableAfter = Runtime.getSTMIrrevocableAfter();
+        if (irrevocableAfter > 0 && attempts >= irrevocableAfter) {
+            becomeIrrevocable(cap, tso);
+        }
+    }
+
+    /* Called when the transaction stops running, because it committed, retried or
+       threw an exception. */
+    public void onFinish(TSO tso, int attempts) {
+        leaveIrrevocable(tso);
+    }
+
+    protected abstract void backoff(Capability cap, TSO tso, int attempts);
+
+    /** Policies **/
+
+    private static volatile ContentionManager instance;
+
+    public static ContentionManager getInstance() {
+        ContentionManager manager = instance;
+        if (manager == null) {
+            manager = create(Runtime.getSTMContentionManager());
+            instance = manager;
+        }
+        return manager;
+    }
+
+    public static ContentionManager create(String name) {
+        if (name == null || name.isEmpty() || name.equals("backoff")) {
+            return new Backoff();
+        } else if (name.equals("karma")) {
+            return new Karma();
+        } else if (name.equals("none")) {
+            return new Immediate();
+        } else {
+            try {
+                return (ContentionManager)
+                    Class.forName(name).getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                if (Runtime.debugSTM()) {
+                    debugSTM("Unable to load the contention manager " + name +
+                             ", using backoff instead: " + e);
+                }
+                return new Backoff();
+            }
+        }
+    }
+
+    /* Restarts the transaction right away. */
+    public static class Immediate extends ContentionManager {
+        @Override
+        protected void backoff(Capability cap, TSO tso, int attempts) {}
+    }
+
+    /* Waits for a random time that doubles with each abort so that transactions that
+       keep conflicting spread out. */
+    public static class Backoff extends ContentionManager {
+        public static final long MIN_BACKOFF_NANOS = 1000L;
+        public static final long MAX_BACKOFF_NANOS = 1000000L;
+
+        public static long getBackoffNanos(int attempts) {
+            final int shift = Math.min(Math.max(attempts - 1, 0), 10);
+            final long limit = Math.min(MIN_BACKOFF_NANOS << shift, MAX_BACKOFF_NANOS);
+            return 1 + ThreadLocalRandom.current().nextLong(limit);
+        }
+
+        @Override
+        protected void backoff(Capability cap, TSO tso, int attempts) {
+            pause(cap, getBackoffNanos(attempts));
+        }
+    }
+
+    /* Gives priority to the transaction that has been aborted the most: the others
+       back off before committing for longer the more karma it has over them, which
+       gives it a window to commit. */
+    public static class Karma extends Backoff {
+        private final AtomicReference<TSO> leader = new AtomicReference<TSO>();
+        private volatile int leaderKarma;
+
+        @Override
+        public void beforeCommit(Capability cap, TSO tso, int attempts) {
+            final TSO current = leader.get();
+            if (current != null && current != tso) {
+                for (int i = attempts; i < leaderKarma && leader.get() == current; i++) {
+                    pause(cap, getBackoffNanos(i + 1));
+                }
+            }
+            super.beforeCommit(cap, tso, attempts);
+        }
+
+        @Override
+        public void onAbort(Capability cap, TSO tso, int attempts) {
+            final TSO current = leader.get();
+            if (current == tso) {
+                leaderKarma = attempts;
+            } else if ((current == null || attempts > leaderKarma)
+                       && leader.compareAndSet(current, tso)) {
+                leaderKarma = attempts;
+            }
+            super.onAbort(cap, tso, attempts);
+        }
+
+        @Override
+        public void onFinish(TSO tso, int attempts) {
+            leader.compareAndSet(tso, null);
+            super.onFinish(tso, attempts);
+        }
+
+        public TSO getLeader() {
+            return leader.get();
+        }
+    }
+
+    protected static void pause(Capability cap, long nanos) {
+        if (cap == null) {
+            LockSupport.parkNanos(nanos);
+        } else {
+            cap.blockedLoop(nanos);
+        }
+    }
+
+    /** Irrevocable Mode **/
+
+    private static final AtomicReference<TSO> irrevocable = new AtomicReference<TSO>();
+    /* The number of commits of transactions that write that are in progress. */
+    private static final AtomicInteger activeCommits = new AtomicInteger();
+
+    public static TSO getIrrevocable() {
+        return irrevocable.get();
+    }
+
+    /* Waits until no other transaction is irrevocable and the commits that are in
+       progress have finished, after which no other transaction that writes can commit
+       until leaveIrrevocable() is called. */
+    public static void becomeIrrevocable(Capability cap, TSO tso) {
+        if (irrevocable.get() == tso) return;
+        while (!irrevocable.compareAndSet(null, tso)) {
+            pause(cap, Backoff.MAX_BACKOFF_NANOS);
+        }
+        if (Runtime.debugSTM()) {
+            debugSTM(tso + " became irrevocable.");
+        }
+        while (activeCommits.get() != 0) {
+            Thread.yield();
+        }
+    }
+
+    public static void leaveIrrevocable(TSO tso) {
+        irrevocable.compareAndSet(tso, null);
+    }
+
+    /* Must be paired with exitCommit(). */
+    public static void enterCommit(Capability cap, TSO tso) {
+        if (Runtime.getSTMIrrevocableAfter() <= 0) return;
+        for (;;) {
+            activeCommits.incrementAndGet();
+            final TSO holder = irrevocable.get();
+            if (holder == null || holder == tso) return;
+            activeCommits.decrementAndGet();
+            while (irrevocable.get() == holder) {
+                pause(cap, Backoff.MAX_BACKOFF_NANOS);
+            }
+        }
+    }
+
+    public static void exitCommit() {
+        if (Runtime.getSTMIrrevocableAfter() <= 0) return;
+        activeCommits.decrementAndGet();
+    }
+}
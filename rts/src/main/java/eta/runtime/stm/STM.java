@@ -1,8 +1,8 @@
 package eta.runtime.stm;
 
 import java.util.Queue;
-import java.util.LinkedList;
 
+import eta.runtime.Runtime;
 import eta.runtime.stg.TSO;
 import eta.runtime.stg.Capability;
 import eta.runtime.stg.Closure;
@@ -12,7 +12,10 @@ import eta.runtime.exception.Exception;
 import eta.runtime.exception.StgException;
 import eta.runtime.exception.EtaException;
 import eta.runtime.exception.EtaAsyncException;
+import eta.runtime.exception.RestartException;
 import eta.runtime.exception.RetryException;
+import static eta.runtime.stg.TSO.WhyBlocked.*;
+import static eta.runtime.RuntimeLogging.*;
 
 public class STM {
     /* STM RTS primops */
@@ -53,123 +56,201 @@ public class STM {
         if (outer != null) {
             return Exception.raise(context, Closures.nestedAtomically);
         } else {
-            Queue<InvariantCheck> invariants = new LinkedList<InvariantCheck>();
-            TransactionRecord trec           = TransactionRecord.start(outer);
+            Queue<InvariantCheck> invariants = null;
             Capability cap                   = context.myCapability;
+            TransactionEntryPool pool        = cap.getTransactionEntryPool();
+            TransactionRecord trec           = TransactionRecord.start(pool, outer);
             Closure result                   = null;
             Closure frameResult              = null;
             boolean runCode                  = true;
+            ContentionManager manager        = ContentionManager.getInstance();
+            int attempts                     = 0;
+            /* Set when the transaction was aborted. The contention manager is only
+               consulted at the start of the next attempt, once a fresh record is in
+               place, since it may block and receive an asynchronous exception. */
+            boolean aborted                  = false;
             tso.trec                         = trec;
-            do {
-                try {
-                    if (runCode) {
-                        result  = code.applyV(context);
-                        runCode = false;
-                    }
-                    trec  = tso.trec;
-                    outer = trec.enclosingTrec;
-                    if (outer == null) {
-                        trec.getInvariantsToCheck(invariants);
-                        frameResult = result;
-                    } else {
-                        tso.trec = outer;
-                        invariants.peek().myExecution = trec;
-                        trec.abort();
-                        invariants.poll();
-                        trec = outer;
-                    }
-                    if (invariants.isEmpty()) {
-                        boolean valid = trec.commit(cap);
-                        if (valid) {
-                            tso.trec = null;
-                            return frameResult;
-                        } else {
-                            trec = TransactionRecord.start(null);
-                            tso.trec = trec;
-                            invariants.clear();
-                            runCode = true;
-                            continue;
+            try {
+                do {
+                    try {
+                        if (aborted) {
+                            aborted = false;
+                            manager.onAbort(cap, tso, attempts);
                         }
-                    } else {
-                        trec = TransactionRecord.start(trec);
-                        tso.trec = trec;
-                        result = invariants.peek().invariant.code.applyV(context);
-                        continue;
-                    }
-                } catch (java.lang.Exception e_) {
-                    if (e_ instanceof EtaAsyncException) {
-                        EtaAsyncException e = (EtaAsyncException) e_;
-                        if (e.stopAtAtomically) {
-                            assert tso.trec.enclosingTrec == null;
-                            tso.trec.condemn();
-                            result = null;
-                            continue;
-                        } else {
-                            trec = tso.trec;
-                            outer = trec.enclosingTrec;
-                            trec.abort();
-                            tso.trec = outer;
-                            /* TODO: Apparently, we need to replace all thunks with
-                               code that eventually retried the atomically
-                               transaction.
-
-                               unsafePerformIO/unsafeInterleaveIO break this,
-                               so we need to figure out an alternative
-                               implementation.
-                            */
-                            throw e;
+                        if (runCode) {
+                            result  = code.applyV(context);
+                            runCode = false;
                         }
-                    } else if (e_ instanceof RetryException) {
-                        RetryException e = (RetryException) e_;
-
                         trec  = tso.trec;
                         outer = trec.enclosingTrec;
-                        if (outer != null) {
+                        if (outer == null) {
+                            invariants = trec.getInvariantsToCheck(invariants);
+                            frameResult = result;
+                        } else {
+                            tso.trec = outer;
+                            invariants.peek().myExecution = trec;
                             trec.abort();
-                            trec     = outer;
-                            tso.trec = trec;
-                            outer    = trec.enclosingTrec;
+                            invariants.poll();
+                            trec = outer;
                         }
-                        assert outer == null;
-                        boolean valid = trec.wait(tso);
-                        if (valid) {
-                            trec.revertOwnership(true);
-                            do {
-                                cap.blockedLoop();
-                                valid = trec.reWait(tso);
-                            } while (valid);
-                        }
-                        /* If the transaction is invalid, retry. */
-                        trec     = TransactionRecord.start(null);
-                        tso.trec = trec;
-                        runCode  = true;
-                        continue;
-                    } else  {
-                        EtaException e = null;
-                        if (e_ instanceof EtaException) {
-                            e = (EtaException) e_;
+                        if (invariants == null || invariants.isEmpty()) {
+                            boolean valid = commit(cap, tso, trec, manager, attempts);
+                            trec.release();
+                            if (valid) {
+                                tso.trec = null;
+                                return frameResult;
+                            } else {
+                                attempts++;
+                                if (Runtime.debugSTM()) {
+                                    debugSTM(tso + " aborted " + attempts + " time(s), " +
+                                             "conflicting on " + trec.conflict);
+                                }
+                                trec = TransactionRecord.start(pool, null);
+                                tso.trec = trec;
+                                invariants = null;
+                                runCode = true;
+                                aborted = true;
+                                continue;
+                            }
                         } else {
-                            e = EtaException.fromJavaException(tso, e_);
-                        }
-                        trec = tso.trec;
-                        boolean valid = trec.validateNestOfTransactions();
-                        outer = trec.enclosingTrec;
-                        trec.abort();
-                        if (outer != null) {
-                            outer.abort();
+                            trec = TransactionRecord.start(trec);
+                            tso.trec = trec;
+                            result = invariants.peek().invariant.code.applyV(context);
+                            continue;
                         }
-                        tso.trec = null;
-                        if (valid) {
-                            throw e;
-                        } else {
-                            trec = TransactionRecord.start(null);
+                    } catch (java.lang.Exception e_) {
+                        if (e_ instanceof EtaAsyncException) {
+                            EtaAsyncException e = (EtaAsyncException) e_;
+                            if (e.stopAtAtomically) {
+                                assert tso.trec.enclosingTrec == null;
+                                tso.trec.condemn();
+                                result = null;
+                                continue;
+                            } else {
+                                trec = tso.trec;
+                                outer = trec.enclosingTrec;
+                                trec.abort();
+                                trec.release();
+                                tso.trec = outer;
+                                /* TODO: Apparently, we need to replace all thunks with
+                                   code that eventually retried the atomically
+                                   transaction.
+
+                                   unsafePerformIO/unsafeInterleaveIO break this,
+                                   so we need to figure out an alternative
+                                   implementation.
+                                */
+                                throw e;
+                            }
+                        } else if (e_ instanceof RestartException) {
+                            /* A read was inconsistent with the ones before it, so the
+                               whole nest of transactions is run again. */
+                            trec = tso.trec;
+                            while (trec != null) {
+                                outer = trec.enclosingTrec;
+                                trec.abort();
+                                trec.release();
+                                trec = outer;
+                            }
+                            attempts++;
+                            if (Runtime.debugSTM()) {
+                                debugSTM(tso + " restarted after an inconsistent read, " +
+                                         "aborted " + attempts + " time(s)");
+                            }
+                            trec = TransactionRecord.start(pool, null);
                             tso.trec = trec;
+                            invariants = null;
                             runCode = true;
+                            aborted = true;
+                            continue;
+                        } else if (e_ instanceof RetryException) {
+                            RetryException e = (RetryException) e_;
+
+                            trec  = tso.trec;
+                            outer = trec.enclosingTrec;
+                            if (outer != null) {
+                                trec.abort();
+                                trec.release();
+                                trec     = outer;
+                                tso.trec = trec;
+                                outer    = trec.enclosingTrec;
+                            }
+                            assert outer == null;
+                            /* Nothing conflicted, so the transaction starts over without
+                               any priority it may have gained. */
+                            manager.onFinish(tso, attempts);
+                            attempts = 0;
+                            /* Sleep until a transaction commits to one of the TVars that
+                               were read. The sleep is bounded so that the check for
+                               being blocked indefinitely runs again in case the threads
+                               that could commit to them exit in the meantime. */
+                            if (trec.wait(tso)) {
+                                try {
+                                    do {
+                                        cap.parkedLoop(Runtime.getSTMRetryCheckTimeNanos());
+                                    } while (trec.reWait(tso));
+                                } finally {
+                                    trec.removeWatchQueueEntries();
+                                    tso.whyBlocked = NotBlocked;
+                                    tso.blockInfo  = null;
+                                }
+                            } else {
+                                tso.whyBlocked = NotBlocked;
+                                tso.blockInfo  = null;
+                            }
+                            /* If the transaction is invalid, retry. */
+                            trec.release();
+                            trec     = TransactionRecord.start(pool, null);
+                            tso.trec = trec;
+                            runCode  = true;
                             continue;
+                        } else  {
+                            EtaException e = null;
+                            if (e_ instanceof EtaException) {
+                                e = (EtaException) e_;
+                            } else {
+                                e = EtaException.fromJavaException(tso, e_);
+                            }
+                            trec = tso.trec;
+                            boolean valid = trec.validateNestOfTransactions();
+                            outer = trec.enclosingTrec;
+                            trec.abort();
+                            trec.release();
+                            if (outer != null) {
+                                outer.abort();
+                                outer.release();
+                            }
+                            tso.trec = null;
+                            if (valid) {
+                                throw e;
+                            } else {
+                                attempts++;
+                                trec = TransactionRecord.start(pool, null);
+                                tso.trec = trec;
+                                invariants = null;
+                                runCode = true;
+                                aborted = true;
+                                continue;
+                            }
                         }
                     }
-                }
-            } while (true);
+                } while (true);
+            } finally {
+                manager.onFinish(tso, attempts);
+            }
+        }
+    }
+
+    private static boolean commit(Capability cap, TSO tso, TransactionRecord trec,
+                                  ContentionManager manager, int attempts) {
+        if (trec.readOnly && !trec.hasInvariantsToCheck()) {
+            return trec.commit(cap);
+        }
+        manager.beforeCommit(cap, tso, attempts);
+        try {
+            return trec.commit(cap);
+        } finally {
+            manager.afterCommit(tso, attempts);
         }
     }
 
@@ -185,6 +266,7 @@ public class STM {
                 trec   = tso.trec;
                 outer  = trec.enclosingTrec;
                 boolean committed = trec.commitNested();
+                trec.release();
                 if (committed) {
                     tso.trec = outer;
                     return result;
@@ -204,6 +286,7 @@ public class STM {
             trec  = tso.trec;
             outer = trec.enclosingTrec;
             trec.abort();
+            trec.release();
             tso.trec = outer;
             if (handle) {
                 EtaException e_;
@@ -238,6 +321,7 @@ public class STM {
                 trec  = tso.trec;
                 outer = trec.enclosingTrec;
                 boolean committed = trec.commitNested();
+                trec.release();
                 if (committed) {
                     tso.trec = outer;
                     return result;
@@ -250,6 +334,7 @@ public class STM {
                 trec  = tso.trec;
                 outer = trec.enclosingTrec;
                 trec.abort();
+                trec.release();
                 if (e instanceof RetryException) {
                     assert outer != null;
                     tso.trec = outer;
@@ -1,7 +1,11 @@
 package eta.runtime.stm;
 
 import java.util.Set;
+import java.util.Collections;
 import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import eta.runtime.stg.Capability;
@@ -13,102 +17,159 @@ import static eta.runtime.util.UnsafeUtil.UNSAFE;
 
 public class TVar extends Value {
     public volatile Closure currentValue;
-    public Set<TSO> watchQueue = new LinkedHashSet<TSO>();
-    public Set<AtomicInvariant> invariants = new LinkedHashSet<AtomicInvariant>();
-    public int numUpdates;
+    /* The version of the last transaction that committed to this TVar, shifted left by
+       one. The lowest bit is set while a committing transaction holds the TVar. */
+    public volatile long stamp;
+    /* The TSOs blocked in retry after reading this TVar. Allocated by the first one. */
+    public volatile ConcurrentLinkedQueue<TSO> watchQueue;
+    /* The number of commits that failed because of a conflict on this TVar. */
+    public volatile int aborts;
+    /* Allocated when the first invariant is connected. */
+    public Set<AtomicInvariant> invariants;
 
     public TVar(Closure currentValue) {
         this.currentValue = currentValue;
     }
 
+    /* The value is only replaced while the TVar is locked, so it can be read directly
+       outside of a transaction. */
     public Closure currentValue() {
-        Closure result;
-        do {
-            result = currentValue;
-        } while (result instanceof TransactionRecord);
-        return result;
+        return currentValue;
+    }
+
+    public static boolean isLocked(long stamp) {
+        return (stamp & 1L) != 0;
+    }
+
+    public static long getVersion(long stamp) {
+        return stamp >>> 1;
     }
 
     /** Watch Queue **/
 
     public void removeFromWatchQueue(TSO tso) {
-        watchQueue.remove(tso);
+        final ConcurrentLinkedQueue<TSO> queue = watchQueue;
+        if (queue != null) {
+            queue.remove(tso);
+        }
     }
 
     public void offerWatchQueue(TSO tso) {
-        watchQueue.add(tso);
+        ConcurrentLinkedQueue<TSO> queue = watchQueue;
+        if (queue == null) {
+            queue = new ConcurrentLinkedQueue<TSO>();
+            if (!wqUpdater.compareAndSet(this, null, queue)) {
+                queue = watchQueue;
+            }
+        }
+        queue.offer(tso);
     }
 
     public void unparkWaiters(Capability c) {
-        for (TSO tso: watchQueue) {
-            tso.unpark(c);
+        final ConcurrentLinkedQueue<TSO> queue = watchQueue;
+        if (queue != null) {
+            for (TSO tso: queue) {
+                tso.unpark(c);
+            }
         }
     }
 
     /** Invariants **/
 
+    public boolean hasInvariants() {
+        return invariants != null;
+    }
+
     public Set<AtomicInvariant> getInvariants() {
+        if (invariants == null) {
+            return Collections.emptySet();
+        }
         return invariants;
     }
 
     public void addInvariant(AtomicInvariant inv) {
+        if (invariants == null) {
+            invariants = new LinkedHashSet<AtomicInvariant>();
+        }
         invariants.add(inv);
     }
 
     public void removeInvariant(AtomicInvariant inv) {
-        invariants.remove(inv);
+        if (invariants != null) {
+            invariants.remove(inv);
+        }
+    }
+
+    /** Contention **/
+
+    public int getAborts() {
+        return aborts;
+    }
+
+    public void recordAbort() {
+        abortsUpdater.incrementAndGet(this);
     }
 
     /** Locking Mechanisms **/
 
-    public Closure lock(TransactionRecord trec) {
-        Closure result;
+    /* Locks the TVar regardless of its version and returns the stamp it had so that
+       unlock() can restore it. */
+    public long lock() {
+        long stamp;
         do {
-            result = currentValue();
-        } while (!cas(result, trec));
-        return result;
+            stamp = this.stamp;
+        } while (isLocked(stamp) || !cas(stamp, stamp | 1L));
+        return stamp;
     }
 
-    public boolean conditionalLock(TransactionRecord trec, Closure expected) {
-        return cas(expected, trec);
+    /* Locks the TVar only if no transaction has committed to it since the given
+       version was observed. */
+    public boolean conditionalLock(long version) {
+        final long stamp = version << 1;
+        return cas(stamp, stamp | 1L);
     }
 
-    public void unlock(Closure c) {
-        if (useUnsafe) {
-            currentValue = c;
-        } else {
-            cvUpdater.set(this, c);
-        }
+    public void unlock(long stamp) {
+        this.stamp = stamp;
     }
 
-    public boolean isLocked(TransactionRecord trec) {
-        return currentValue == trec;
+    /* Publishes a new value with the version of the committing transaction. */
+    public void commit(Closure newValue, long version) {
+        currentValue = newValue;
+        stamp = version << 1;
     }
 
     /** CAS Operation Support **/
 
     private static final boolean useUnsafe = UnsafeUtil.UNSAFE != null;
-    private static long tVarOffset = 0;
+    private static long stampOffset = 0;
     static {
         if (useUnsafe) {
             try {
-                tVarOffset = UNSAFE.objectFieldOffset
-                    (TVar.class.getDeclaredField("currentValue"));
+                stampOffset = UNSAFE.objectFieldOffset
+                    (TVar.class.getDeclaredField("stamp"));
             } catch (ReflectiveOperationException e) {
                 e.printStackTrace();
             }
         }
     }
 
-    private static final AtomicReferenceFieldUpdater<TVar, Closure> cvUpdater
+    private static final AtomicIntegerFieldUpdater<TVar> abortsUpdater
+        = AtomicIntegerFieldUpdater.newUpdater(TVar.class, "aborts");
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<TVar, ConcurrentLinkedQueue> wqUpdater
         = AtomicReferenceFieldUpdater
-            .newUpdater(TVar.class, Closure.class, "currentValue");
+            .newUpdater(TVar.class, ConcurrentLinkedQueue.class, "watchQueue");
+
+    private static final AtomicLongFieldUpdater<TVar> stampUpdater
+        = AtomicLongFieldUpdater.newUpdater(TVar.class, "stamp");
 
-    public final boolean cas(Closure expected, Closure update) {
+    public final boolean cas(long expected, long update) {
         if (useUnsafe) {
-            return UNSAFE.compareAndSwapObject(this, tVarOffset, expected, update);
+            return UNSAFE.compareAndSwapLong(this, stampOffset, expected, update);
         } else {
-            return cvUpdater.compareAndSet(this, expected, update);
+            return stampUpdater.compareAndSet(this, expected, update);
         }
     }
 }
@@ -6,12 +6,23 @@ public class TransactionEntry {
     public TVar    tvar;
     public Closure expectedValue;
     public Closure newValue;
-    public int     numUpdates;
+    /* The version of the TVar when expectedValue was read. */
+    public long    version;
+    /* Whether this transaction currently holds the lock on the TVar. */
+    public boolean locked;
+    /* Used by TransactionEntryPool. */
+    TransactionEntry link;
 
-    public TransactionEntry(TVar tvar, Closure expected, Closure updated) {
+    public TransactionEntry(TVar tvar, Closure expected, Closure updated, long version) {
+        init(tvar, expected, updated, version);
+    }
+
+    public void init(TVar tvar, Closure expected, Closure updated, long version) {
         this.tvar          = tvar;
         this.expectedValue = expected;
         this.newValue      = updated;
+        this.version       = version;
+        this.locked        = false;
     }
 
     public boolean isUpdate() {
@@ -21,4 +32,9 @@ public class TransactionEntry {
     public boolean isReadOnly() {
         return expectedValue == newValue;
     }
+
+    /* Whether no transaction has committed to the TVar since it was read. */
+    public boolean isValid() {
+        return tvar.stamp == (version << 1);
+    }
 }
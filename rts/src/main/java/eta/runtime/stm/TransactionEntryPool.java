@@ -0,0 +1,42 @@
+package eta.runtime.stm;
+
+import eta.runtime.stg.Closure;
+
+/* A pool of free TransactionEntries that is local to a Capability, so that retried and
+   repeated transactions reuse the entries of the ones that finished before them. The
+   pool is bounded so that a single large transaction can't pin its entries forever.
+
+   WARNING: Only the owning Capability may use the pool. */
+public class TransactionEntryPool {
+    public static final int MAX_ENTRIES = 256;
+
+    /* The free entries are chained through TransactionEntry.link. */
+    private TransactionEntry free;
+    private int size;
+
+    public TransactionEntry take(TVar tvar, Closure expected, Closure updated,
+                                 long version) {
+        final TransactionEntry entry = free;
+        if (entry == null) {
+            return new TransactionEntry(tvar, expected, updated, version);
+        }
+        free = entry.link;
+        size--;
+        entry.link = null;
+        entry.init(tvar, expected, updated, version);
+        return entry;
+    }
+
+    public void offer(TransactionEntry entry) {
+        if (size >= MAX_ENTRIES) return;
+        /* Drop the references so that the pool doesn't keep them alive. */
+        entry.init(null, null, null, 0);
+        entry.link = free;
+        free = entry;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+}
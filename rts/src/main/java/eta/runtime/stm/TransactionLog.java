@@ -0,0 +1,126 @@
+package eta.runtime.stm;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/* The entries of a TransactionRecord keyed by the identity of their TVars. Most
+   transactions touch a handful of TVars, so small logs are searched linearly and an
+   open-addressed index is only built once the log grows past LINEAR_THRESHOLD.
+
+   Entries are kept in the order they were added, so they can be iterated by position
+   without allocating. A TVar may only be added once. */
+public final class TransactionLog implements Iterable<TransactionEntry> {
+    public static final int LINEAR_THRESHOLD = 8;
+
+    private TransactionEntry[] entries = new TransactionEntry[LINEAR_THRESHOLD];
+    private int size;
+    /* The positions of the entries plus one, so that 0 marks an empty slot. */
+    private int[] index;
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public TransactionEntry get(int i) {
+        return entries[i];
+    }
+
+    public TransactionEntry get(TVar tvar) {
+        if (index == null) {
+            for (int i = 0; i < size; i++) {
+                final TransactionEntry e = entries[i];
+                if (e.tvar == tvar) return e;
+            }
+            return null;
+        }
+        final int mask = index.length - 1;
+        int slot = hash(tvar) & mask;
+        int pos;
+        while ((pos = index[slot]) != 0) {
+            final TransactionEntry e = entries[pos - 1];
+            if (e.tvar == tvar) return e;
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    public void add(TransactionEntry entry) {
+        assert get(entry.tvar) == null;
+        if (size == entries.length) {
+            entries = Arrays.copyOf(entries, size << 1);
+        }
+        entries[size++] = entry;
+        if (index != null) {
+            if ((size << 1) > index.length) {
+                rebuildIndex();
+            } else {
+                insert(index, entry.tvar, size);
+            }
+        } else if (size > LINEAR_THRESHOLD) {
+            rebuildIndex();
+        }
+    }
+
+    /* Empties the log, returning the entries to the pool if there is one. */
+    public void clear(TransactionEntryPool pool) {
+        for (int i = 0; i < size; i++) {
+            if (pool != null) {
+                pool.offer(entries[i]);
+            }
+            entries[i] = null;
+        }
+        size  = 0;
+        index = null;
+    }
+
+    private void rebuildIndex() {
+        /* Keep the table at most half full. */
+        final int[] newIndex = new int[Integer.highestOneBit(size) << 2];
+        for (int i = 0; i < size; i++) {
+            insert(newIndex, entries[i].tvar, i + 1);
+        }
+        index = newIndex;
+    }
+
+    private static void insert(int[] index, TVar tvar, int pos) {
+        final int mask = index.length - 1;
+        int slot = hash(tvar) & mask;
+        while (index[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = pos;
+    }
+
+    private static int hash(TVar tvar) {
+        final int h = System.identityHashCode(tvar) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public Iterator<TransactionEntry> iterator() {
+        return new Iterator<TransactionEntry>() {
+            private int i;
+
+            @Override
+            public boolean hasNext() {
+                return i < size;
+            }
+
+            @Override
+            public TransactionEntry next() {
+                if (i >= size) throw new NoSuchElementException();
+                return entries[i++];
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
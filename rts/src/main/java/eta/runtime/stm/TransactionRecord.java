@@ -1,24 +1,45 @@
 package eta.runtime.stm;
 
-import java.util.Collection;
 import java.util.Map;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.Queue;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
 
 import eta.runtime.stg.Value;
 import eta.runtime.stg.Capability;
 import eta.runtime.stg.Closure;
 import eta.runtime.stg.TSO;
+import eta.runtime.exception.RestartException;
 
 import static eta.runtime.stm.TransactionRecord.State.*;
 
+/* Transactions follow the TL2 design: reads are invisible and only record the version
+   of the TVar they saw, and locks are only taken on the TVars being written when a
+   transaction commits. A global clock orders commits, and a transaction is consistent
+   as long as none of the TVars it has read have been committed to since it read them. */
 public class TransactionRecord extends Value implements Iterable<TransactionEntry> {
+    /* The version of the last commit. */
+    private static final AtomicLong globalClock = new AtomicLong();
+
     public TransactionRecord enclosingTrec;
-    public Map<TVar, TransactionEntry> entries = new HashMap<TVar, TransactionEntry>();
-    public Map<AtomicInvariant, InvariantCheck> invariantsToCheck
-        = new LinkedHashMap<AtomicInvariant, InvariantCheck>();
+    /* Every TVar read by the outermost transaction and its nested transactions has a
+       version no greater than this, so they form a consistent snapshot. */
+    public long readVersion;
+    public final TransactionLog entries = new TransactionLog();
+    /* Where the entries come from and go back to when the record is released. */
+    private final TransactionEntryPool pool;
+    /* Allocated when the transaction calls check or touches a TVar with invariants. */
+    public Map<AtomicInvariant, InvariantCheck> invariantsToCheck;
+    /* Whether nothing has been written, so the transaction can commit without taking
+       any locks or advancing the global clock. */
+    public boolean readOnly = true;
     public State state;
+    /* The TVar that made the transaction inconsistent, if it was. */
+    public TVar conflict;
+    /* The TSO that is blocked on this transaction, if any. */
+    private TSO waiter;
     public enum State {
         TREC_ACTIVE,
         TREC_CONDEMNED,
@@ -27,10 +48,12 @@ public class TransactionRecord extends Value implements Iterable<TransactionEntr
         TREC_WAITING
     }
 
-    public TransactionRecord(TransactionRecord enclosingTrec) {
+    public TransactionRecord(TransactionEntryPool pool, TransactionRecord enclosingTrec) {
         this.enclosingTrec = enclosingTrec;
+        this.pool          = pool;
         if (enclosingTrec == null) {
             this.state = TREC_ACTIVE;
+            this.readVersion = globalClock.get();
         } else {
             assert enclosingTrec.state == TREC_ACTIVE
                 || enclosingTrec.state == TREC_CONDEMNED;
@@ -38,8 +61,20 @@ public class TransactionRecord extends Value implements Iterable<TransactionEntr
         }
     }
 
+    /* Nested transactions share the pool of the ones enclosing them. */
     public static TransactionRecord start(TransactionRecord enclosing) {
-        return new TransactionRecord(enclosing);
+        return new TransactionRecord(enclosing == null? null : enclosing.pool, enclosing);
+    }
+
+    public static TransactionRecord start(TransactionEntryPool pool,
+                                          TransactionRecord enclosing) {
+        return new TransactionRecord(pool, enclosing);
+    }
+
+    /* Returns the entries to the pool. Must only be called once nothing refers to the
+       record anymore, so never for the executions of invariants, which are kept. */
+    public void release() {
+        entries.clear(pool);
     }
 
     public static class EntrySearchResult {
@@ -55,7 +90,7 @@ public class TransactionRecord extends Value implements Iterable<TransactionEntr
         TransactionEntry entry = null;
         TransactionRecord trec = this;
         do {
-            entry = get(tvar);
+            entry = trec.get(tvar);
         } while (entry == null && ((trec = trec.enclosingTrec) != null));
         return (entry == null? null:new EntrySearchResult(trec, entry));
     }
@@ -64,69 +99,130 @@ public class TransactionRecord extends Value implements Iterable<TransactionEntr
         return entries.get(tvar);
     }
 
-    public void put(TVar tvar, Closure expected, Closure updated) {
-        entries.put(tvar, new TransactionEntry(tvar, expected, updated));
+    public TransactionEntry put(TVar tvar, Closure expected, Closure updated,
+                                long version) {
+        final TransactionEntry entry = (pool == null)
+            ? new TransactionEntry(tvar, expected, updated, version)
+            : pool.take(tvar, expected, updated, version);
+        entries.add(entry);
+        return entry;
+    }
+
+    public TransactionRecord getOutermost() {
+        TransactionRecord trec = this;
+        while (trec.enclosingTrec != null) {
+            trec = trec.enclosingTrec;
+        }
+        return trec;
+    }
+
+    /* Reads the value of a TVar that hasn't been seen by this transaction yet without
+       locking it, and records the version it was read at. If the value can't be part
+       of a consistent snapshot, the transaction is condemned and restarted instead of
+       being allowed to continue with it. */
+    private TransactionEntry load(TVar tvar) {
+        final TransactionRecord outer = getOutermost();
+        for (;;) {
+            long stamp;
+            Closure value;
+            do {
+                stamp = tvar.stamp;
+                value = tvar.currentValue;
+                /* The value may be replaced while the TVar is locked, which only happens
+                   for the duration of a commit. */
+            } while (TVar.isLocked(stamp) || stamp != tvar.stamp);
+            final long version = TVar.getVersion(stamp);
+            if (version <= outer.readVersion) {
+                return put(tvar, value, value, version);
+            }
+            /* The TVar was committed to after the snapshot was taken, so the snapshot
+               is extended if nothing that has been read so far has changed since. */
+            final long now = globalClock.get();
+            if (state == TREC_CONDEMNED || !validateNest()) {
+                state = TREC_CONDEMNED;
+                recordAbort();
+                throw RestartException.INSTANCE;
+            }
+            /* A commit that took a version up to now locked the TVar before taking
+               it, so if the TVar is still unchanged, the value is part of the snapshot
+               as of now. Otherwise it's loaded again. */
+            if (tvar.stamp == stamp) {
+                outer.readVersion = now;
+                return put(tvar, value, value, version);
+            }
+        }
     }
 
     public Closure read(TVar tvar) {
         assert state == TREC_ACTIVE || state == TREC_CONDEMNED;
-        Closure result = null;
-        EntrySearchResult searchResult = getNested(tvar);
-        TransactionRecord entryIn      = null;
-        TransactionEntry  entry        = null;
-        if (searchResult != null) {
-            entryIn = searchResult.header;
-            entry   = searchResult.entry;
-        }
-        if (entry != null) {
-            if (entryIn != this) {
+        TransactionEntry entry = entries.get(tvar);
+        if (entry == null) {
+            TransactionEntry outer = findEnclosing(tvar);
+            if (outer != null) {
                 /* If the entry was found in a parent TRec, copy the entry to
                    the current trec, since you have just read it in the
                    current transaction. */
-                put(tvar, entry.expectedValue, entry.newValue);
+                entry = put(tvar, outer.expectedValue, outer.newValue, outer.version);
+            } else {
+                entry = load(tvar);
             }
-            result = entry.newValue;
-        } else {
-            Closure currentValue = tvar.currentValue();
-            put(tvar, currentValue, currentValue);
-            result = currentValue;
         }
-        return result;
+        return entry.newValue;
     }
 
     public void write(TVar tvar, Closure newValue) {
-        EntrySearchResult searchResult = getNested(tvar);
-        TransactionRecord entryIn      = null;
-        TransactionEntry  entry        = null;
-        if (searchResult != null) {
-            entryIn = searchResult.header;
-            entry   = searchResult.entry;
-        }
-        if (entry != null) {
-            if (entryIn == this) {
-                entry.newValue = newValue;
+        TransactionEntry entry = entries.get(tvar);
+        if (entry == null) {
+            TransactionEntry outer = findEnclosing(tvar);
+            if (outer != null) {
+                entry = put(tvar, outer.expectedValue, newValue, outer.version);
             } else {
-                put(tvar, entry.expectedValue, newValue);
+                entry = load(tvar);
             }
-        } else {
-            Closure currentValue = tvar.currentValue();
-            put(tvar, currentValue, newValue);
         }
+        entry.newValue = newValue;
+        /* Writing back the value that was read doesn't count as an update. */
+        if (newValue != entry.expectedValue) {
+            readOnly = false;
+        }
+    }
+
+    private TransactionEntry findEnclosing(TVar tvar) {
+        for (TransactionRecord t = enclosingTrec; t != null; t = t.enclosingTrec) {
+            final TransactionEntry entry = t.entries.get(tvar);
+            if (entry != null) return entry;
+        }
+        return null;
     }
 
     @Override
     public Iterator<TransactionEntry> iterator() {
-        return entries.values().iterator();
+        return entries.iterator();
     }
 
     public void checkInvariant(Closure invariantCode) {
         assert state == TREC_ACTIVE || state == TREC_CONDEMNED;
         AtomicInvariant inv = new AtomicInvariant(invariantCode);
+        addInvariantToCheck(inv);
+    }
+
+    private void addInvariantToCheck(AtomicInvariant inv) {
+        if (invariantsToCheck == null) {
+            invariantsToCheck = new LinkedHashMap<AtomicInvariant, InvariantCheck>();
+        } else if (invariantsToCheck.get(inv) != null) {
+            return;
+        }
         invariantsToCheck.put(inv, new InvariantCheck(inv));
     }
 
-    /* Note: This will place invariants into the collection that is passed in. */
-    public void getInvariantsToCheck(Collection<InvariantCheck> drainTo) {
+    public boolean hasInvariantsToCheck() {
+        return invariantsToCheck != null && !invariantsToCheck.isEmpty();
+    }
+
+    /* Returns the invariants that have to be checked before committing, adding them
+       to the queue that is passed in, or returns null if there are none and no queue
+       was passed in. */
+    public Queue<InvariantCheck> getInvariantsToCheck(Queue<InvariantCheck> drainTo) {
         assert state == TREC_ACTIVE
             || state == TREC_WAITING
             || state == TREC_CONDEMNED;
@@ -135,19 +231,26 @@ public class TransactionRecord extends Value implements Iterable<TransactionEntr
            and adds them to invariants to check for the TRec if they don't
            exist already.
         */
-        for(TransactionEntry e: entries.values()) {
-            if (e.isUpdate()) {
+        if (!readOnly) {
+            for (int i = 0; i < entries.size(); i++) {
+                TransactionEntry e = entries.get(i);
                 TVar s = e.tvar;
-                Closure old = s.lock(this);
-                for (AtomicInvariant inv: s.getInvariants()) {
-                    if (invariantsToCheck.get(inv) == null) {
-                        invariantsToCheck.put(inv, new InvariantCheck(inv));
+                if (e.isUpdate() && s.hasInvariants()) {
+                    long old = s.lock();
+                    for (AtomicInvariant inv: s.getInvariants()) {
+                        addInvariantToCheck(inv);
                     }
+                    s.unlock(old);
                 }
-                s.unlock(old);
             }
         }
-        drainTo.addAll(invariantsToCheck.values());
+        if (hasInvariantsToCheck()) {
+            if (drainTo == null) {
+                drainTo = new ArrayDeque<InvariantCheck>(invariantsToCheck.size());
+            }
+            drainTo.addAll(invariantsToCheck.values());
+        }
+        return drainTo;
     }
 
     public void abort() {
@@ -159,23 +262,25 @@ public class TransactionRecord extends Value implements Iterable<TransactionEntr
                 removeWatchQueueEntries();
             }
         } else {
-            for (TransactionEntry e: entries.values()) {
-                enclosingTrec.mergeReadInto(e.tvar, e.expectedValue);
+            for (int i = 0; i < entries.size(); i++) {
+                TransactionEntry e = entries.get(i);
+                enclosingTrec.mergeReadInto(e.tvar, e.expectedValue, e.version);
             }
         }
     }
 
-    public void mergeReadInto(TVar tvar, Closure expectedValue) {
+    public void mergeReadInto(TVar tvar, Closure expectedValue, long version) {
         TransactionRecord t = this;
         TransactionEntry e = null;
         do {
             e = t.get(tvar);
-            if (e != null && e.expectedValue != expectedValue) {
-                t.state = TREC_CONDEMNED;
+            if (e != null && e.version != version) {
+                t.state    = TREC_CONDEMNED;
+                t.conflict = tvar;
             }
         } while (e == null && ((t = t.enclosingTrec) != null));
         if (e == null) {
-            put(tvar, expectedValue, expectedValue);
+            put(tvar, expectedValue, expectedValue, version);
         }
     }
 
@@ -183,20 +288,29 @@ public class TransactionRecord extends Value implements Iterable<TransactionEntr
         assert enclosingTrec == null;
         assert state == TREC_WAITING
             || state == TREC_CONDEMNED;
-        for (TransactionEntry e:entries.values()) {
-            TVar s = e.tvar;
-            Closure saw = s.lock(this);
-            assert s.currentValue == this;
-            s.removeFromWatchQueue((TSO) e.newValue);
-            s.unlock(saw);
+        final TSO tso = waiter;
+        if (tso == null) return;
+        for (int i = 0; i < entries.size(); i++) {
+            entries.get(i).tvar.removeFromWatchQueue(tso);
         }
+        waiter = null;
     }
 
     public boolean commit(Capability cap) {
         assert enclosingTrec == null;
         assert state == TREC_ACTIVE
             || state == TREC_CONDEMNED;
-        boolean touchedInvariants = !invariantsToCheck.isEmpty();
+        boolean touchedInvariants = hasInvariantsToCheck();
+        if (!touchedInvariants && readOnly) {
+            /* Every read was consistent with the snapshot when it was made, so a
+               transaction that hasn't been condemned can commit as of its read
+               version. */
+            final boolean valid = state != TREC_CONDEMNED;
+            if (!valid) {
+                recordAbort();
+            }
+            return valid;
+        }
         if (touchedInvariants) {
             for (InvariantCheck q: invariantsToCheck.values()) {
                 AtomicInvariant inv = q.invariant;
@@ -207,19 +321,23 @@ public class TransactionRecord extends Value implements Iterable<TransactionEntr
                 TransactionRecord oldTrec = inv.lastExecution;
                 if (oldTrec != null) {
                     for (TransactionEntry e:oldTrec) {
-                        mergeReadInto(e.tvar, e.expectedValue);
+                        mergeReadInto(e.tvar, e.expectedValue, e.version);
                     }
                 }
             }
         }
-        boolean useReadPhase = !touchedInvariants;
-        boolean result = validateAndAcquireOwnership(!useReadPhase, true);
+        /* The TVars that are only read don't have to be locked unless invariants are
+           being connected to them. */
+        boolean acquireAll = touchedInvariants;
+        boolean result = validateAndAcquireOwnership(acquireAll, true);
+        long writeVersion = 0;
         if (result) {
             assert state == TREC_ACTIVE;
-            if (useReadPhase) {
-                /* TODO: Handle token verification here. We currently bypass the
-                         need for this by using long's, so we are essentially
-                         guaranteed to avoid overflows. */
+            writeVersion = globalClock.incrementAndGet();
+            /* If no other transaction has committed since the snapshot was taken, the
+               TVars that were read can't have changed. */
+            if (!acquireAll && writeVersion != readVersion + 1) {
+                result = validateReads();
             }
         }
         if (result) {
@@ -229,50 +347,56 @@ public class TransactionRecord extends Value implements Iterable<TransactionEntr
                     if (inv.lastExecution != null) {
                         inv.disconnect();
                     }
-                    connectInvariant(inv, q.myExecution);
+                    connectInvariant(inv, q.myExecution, writeVersion);
                     inv.unlock();
                 }
             }
 
-            for (TransactionEntry e: entries.values()) {
-                TVar s = e.tvar;
-                if (!useReadPhase || e.isUpdate()) {
-                    assert s.isLocked(this);
-                    s.unparkWaiters(cap);
-                    s.numUpdates++;
-                    s.unlock(e.newValue);
+            for (int i = 0; i < entries.size(); i++) {
+                TransactionEntry e = entries.get(i);
+                if (e.locked) {
+                    TVar s = e.tvar;
+                    e.locked = false;
+                    if (e.isUpdate()) {
+                        s.commit(e.newValue, writeVersion);
+                        /* Waiters register before validating, so once the new version
+                           is published, any waiter that misses it is in the queue. */
+                        s.unparkWaiters(cap);
+                    } else {
+                        s.unlock(e.version << 1);
+                    }
                 }
-                assert !s.isLocked(this);
             }
         } else {
-            revertOwnership(false);
+            revertOwnership(acquireAll);
+            recordAbort();
         }
         return result;
     }
 
+    private void recordAbort() {
+        if (conflict != null) {
+            conflict.recordAbort();
+        }
+    }
+
+    /* Locks the TVars that are written, or all of them if acquireAll is set, as long
+       as none of them have been committed to since they were read. */
     public boolean validateAndAcquireOwnership(boolean acquireAll, boolean retainOwnership) {
         assert state == TREC_ACTIVE
             || state == TREC_WAITING
             || state == TREC_CONDEMNED;
         boolean result = !(state == TREC_CONDEMNED);
         if (result) {
-            for (TransactionEntry e:entries.values()) {
-                TVar s = e.tvar;
+            for (int i = 0; i < entries.size(); i++) {
+                TransactionEntry e = entries.get(i);
                 if (acquireAll || e.isUpdate()) {
-                    if (!s.conditionalLock(this, e.expectedValue)) {
-                        result = false;
-                        break;
-                    }
-                } else {
-                    if (s.currentValue != e.expectedValue) {
-                        result = false;
-                        break;
-                    }
-                    e.numUpdates = s.numUpdates;
-                    if (s.currentValue != e.expectedValue) {
+                    if (!e.tvar.conditionalLock(e.version)) {
+                        conflict = e.tvar;
                         result = false;
                         break;
                     }
+                    e.locked = true;
                 }
             }
         }
@@ -284,17 +408,43 @@ public class TransactionRecord extends Value implements Iterable<TransactionEntr
     }
 
     public void revertOwnership(boolean revertAll) {
-        for (TransactionEntry e:entries.values()) {
-            if (revertAll || e.isUpdate()) {
-                TVar s = e.tvar;
-                if (s.isLocked(this)) {
-                    s.unlock(e.expectedValue);
-                }
+        for (int i = 0; i < entries.size(); i++) {
+            TransactionEntry e = entries.get(i);
+            if (e.locked) {
+                e.tvar.unlock(e.version << 1);
+                e.locked = false;
+            }
+        }
+    }
+
+    /* Checks the TVars that are only read without locking them. */
+    public boolean validateReads() {
+        for (int i = 0; i < entries.size(); i++) {
+            TransactionEntry e = entries.get(i);
+            if (!e.locked && !e.isValid()) {
+                conflict = e.tvar;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* Checks that every TVar read by this transaction and the ones enclosing it is
+       unchanged, without locking any of them. */
+    public boolean validateNest() {
+        TransactionRecord t = this;
+        while (t != null) {
+            if (!t.validateReads()) {
+                conflict = t.conflict;
+                return false;
             }
+            t = t.enclosingTrec;
         }
+        return true;
     }
 
-    public void connectInvariant(AtomicInvariant inv, TransactionRecord myExecution) {
+    public void connectInvariant(AtomicInvariant inv, TransactionRecord myExecution,
+                                 long writeVersion) {
         assert inv.lastExecution == null;
         for (TransactionEntry e:myExecution) {
             TVar s = e.tvar;
@@ -303,6 +453,7 @@ public class TransactionRecord extends Value implements Iterable<TransactionEntr
                 TransactionEntry entry = result.entry;
                 e.expectedValue = entry.newValue;
                 e.newValue = entry.newValue;
+                e.version = entry.isUpdate()? writeVersion : entry.version;
             }
             s.addInvariant(inv);
         }
@@ -313,56 +464,44 @@ public class TransactionRecord extends Value implements Iterable<TransactionEntr
         assert state == TREC_ACTIVE
             || state == TREC_WAITING
             || state == TREC_CONDEMNED;
-        TransactionRecord t = this;
-        boolean result = true;
-        while (t != null) {
-            /* TODO: Can this be optimized to break at result = false? */
-            result &= t.validateAndAcquireOwnership(true, false);
-            t = t.enclosingTrec;
-        }
-
+        boolean result = validateNest();
         if (!result && state != TREC_WAITING) {
             state = TREC_CONDEMNED;
         }
         return result;
     }
 
+    /* Blocks the TSO on the TVars that were read, so that the next transaction to
+       commit to any of them wakes it up. Returns false if one of them has already
+       been committed to, in which case the transaction should be run again right
+       away. */
     public boolean wait(TSO tso) {
-        boolean valid = validateAndAcquireOwnership(true, true);
-        if (valid) {
-            buildWatchQueueEntries(tso);
-            tso.park();
-            state = TREC_WAITING;
+        assert enclosingTrec == null;
+        assert state == TREC_ACTIVE
+            || state == TREC_CONDEMNED;
+        if (state == TREC_CONDEMNED) return false;
+        /* The TSO must be parked before it's visible in the watch queues, otherwise
+           a wakeup can be missed. */
+        tso.park();
+        waiter = tso;
+        state  = TREC_WAITING;
+        for (int i = 0; i < entries.size(); i++) {
+            entries.get(i).tvar.offerWatchQueue(tso);
+        }
+        final boolean valid = validateReads();
+        if (!valid) {
+            removeWatchQueueEntries();
         }
         return valid;
     }
 
+    /* Returns false once the transaction should be run again, either because it was
+       woken up or because one of the TVars it read has been committed to. */
     public boolean reWait(TSO tso) {
         assert enclosingTrec == null;
         assert state == TREC_WAITING
             || state == TREC_CONDEMNED;
-        boolean valid = validateAndAcquireOwnership(true, true);
-        if (valid) {
-            assert state == TREC_WAITING;
-            tso.park();
-            revertOwnership(true);
-        } else {
-            if (state != TREC_CONDEMNED) {
-                removeWatchQueueEntries();
-            }
-        }
-        return valid;
-    }
-
-    public void buildWatchQueueEntries(TSO tso) {
-        assert enclosingTrec == null;
-        assert state == TREC_ACTIVE;
-        for (TransactionEntry e:entries.values()) {
-            TVar s = e.tvar;
-            assert s.currentValue == this;
-            s.offerWatchQueue(tso);
-            e.newValue = tso;
-        }
+        return state == TREC_WAITING && tso.blockInfo != STM.awake && validateReads();
     }
 
     public void condemn() {
@@ -379,49 +518,31 @@ public class TransactionRecord extends Value implements Iterable<TransactionEntr
     public boolean commitNested() {
         assert enclosingTrec != null;
         assert state == TREC_ACTIVE || state == TREC_CONDEMNED;
-        boolean valid = validateAndAcquireOwnership(false, true);
+        boolean valid = state != TREC_CONDEMNED && validateReads();
         if (valid) {
-            valid = checkReadOnly();
-            if (valid) {
-                for (TransactionEntry e:entries.values()) {
-                    TVar s = e.tvar;
-                    if (e.isUpdate()) {
-                        s.unlock(e.expectedValue);
-                    }
-                    enclosingTrec.mergeUpdateInto(s, e.expectedValue, e.newValue);
-                    assert s.currentValue != this;
-                }
-            } else {
-                revertOwnership(false);
+            for (int i = 0; i < entries.size(); i++) {
+                TransactionEntry e = entries.get(i);
+                enclosingTrec.mergeUpdateInto(e.tvar, e.expectedValue, e.newValue,
+                                              e.version);
             }
         }
         return valid;
     }
 
-    public void mergeUpdateInto(TVar tvar, Closure expectedValue, Closure newValue) {
+    public void mergeUpdateInto(TVar tvar, Closure expectedValue, Closure newValue,
+                                long version) {
         TransactionEntry e = get(tvar);
         if (e == null) {
-            put(tvar, expectedValue, newValue);
+            put(tvar, expectedValue, newValue, version);
         } else {
-            if (e.expectedValue != expectedValue) {
-                state = TREC_CONDEMNED;
+            if (e.version != version) {
+                state    = TREC_CONDEMNED;
+                conflict = tvar;
             }
             e.newValue = newValue;
         }
-    }
-
-    public boolean checkReadOnly() {
-        boolean valid = true;
-        for (TransactionEntry e:entries.values()) {
-            TVar s = e.tvar;
-            if (e.isReadOnly()) {
-                if (s.currentValue != e.expectedValue ||
-                    s.numUpdates != e.numUpdates) {
-                    valid = false;
-                    break;
-                }
-            }
+        if (newValue != expectedValue) {
+            readOnly = false;
         }
-        return valid;
     }
 }
@@ -124,8 +124,8 @@ public class AllocationVector {
 
     public final int allocatedSize(int index) {
         int len = vector.length;
-        int off = 0;
-        int idx = index;
+        int off = index & 0x3;
+        int idx = index >>> 2;
         int val = vector[idx];
 
         int n = 0;
@@ -154,6 +154,29 @@ public class AllocationVector {
         throw new IllegalArgumentException("Cannot compute allocated size of illegal index " + index + ".");
     }
 
+    /* Resizes the allocation of n elements at index i to newN elements without moving
+       it, which is only possible for growth if the elements that follow are free.
+       Returns false if the allocation was left untouched. */
+    public final boolean resize(int i, int n, int newN) {
+        if (newN == n) return true;
+        if (newN <= 0) return false;
+        if (newN < n) {
+            /* Split off the tail as an allocation of its own and free it. */
+            final int last = i + newN - 1;
+            vector[last >>> 2] &= ~(0x1 << ((last & 0x3) << 1));
+            free(i + newN);
+            return true;
+        }
+        final int end = i + newN;
+        if (end > size()) return false;
+        for (int j = i + n; j < end; j++) {
+            if (bits(vector[j >>> 2], j & 0x3) > 0x1) return false;
+        }
+        /* The old terminal element becomes non-terminal. */
+        allocate(i + n - 1, newN - n + 1, true);
+        return true;
+    }
+
     public final int findFree(int blocks) {
         int len = vector.length;
         int off = 0;
@@ -1,10 +1,15 @@
 package eta.runtime.storage;
 
 import java.util.List;
+import java.util.LinkedList;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 
+import eta.runtime.Runtime;
 import eta.runtime.stg.Capability;
+import eta.runtime.util.UnsafeUtil;
+import static eta.runtime.util.UnsafeUtil.UNSAFE;
+import static eta.runtime.util.UnsafeUtil.SWAP_BYTES;
 
 public class Block {
     private long startAddress;
@@ -12,10 +17,47 @@ public class Block {
     private AllocationVector av;
     private Capability owner;
 
+    /* When rawAccess is set, reads and writes to direct buffers skip the ByteBuffer
+       and access the native memory at baseOffset directly. Only accesses that lie
+       within the first rawLimit bytes are made this way, the rest go through the
+       ByteBuffer so that they fail with an exception. The values are stored in
+       big-endian order regardless of the platform so that they're consistent with the
+       views from getBoundedBuffer(). */
+    private boolean rawAccess;
+    private long baseOffset;
+    private long rawLimit;
+
+    /* The buffer of a released large object. See release(). */
+    private ByteBuffer released;
+    /* Whether the buffer of a large object was allocated by the heap, in which case
+       it can be reused once the object is freed. */
+    private boolean recyclable;
+
+    private static final boolean useRawAccess =
+        UNSAFE != null && UnsafeUtil.UNALIGNED_ACCESS &&
+        !Runtime.debugCheckedMemoryAccess();
+
     /* This link is used to store it in the collection of free blocks,
        and to store the link to the previous buffer. */
     public Block link;
 
+    /* The block that links to this one in the stack of active blocks, so that a
+       free block can be unlinked in constant time. It's null for the top of the
+       stack. */
+    private Block prev;
+
+    /* Whether the block is sitting in a free block pool. */
+    private boolean pooled;
+
+    /* A slab is a block that is divided into slots of (1 << slotBits) bytes for small
+       allocations. The allocated slots are tracked in the slots bitmap instead of the
+       AllocationVector, which stays empty. slots is null for regular blocks. */
+    private long[] slots;
+    private int slotBits;
+    private int freeSlots;
+    /* The index of the bitmap word to start looking for a free slot in. */
+    private int slotHint;
+
     public Block() {}
 
     public final long allocate(int miniblocks) {
@@ -44,6 +86,50 @@ public class Block {
         this.link = link;
     }
 
+    /* Pushes this block on top of the stack of blocks starting at top and returns
+       the new top. */
+    public final Block pushOnto(Block top) {
+        this.link = top;
+        this.prev = null;
+        if (top != null) {
+            top.prev = this;
+        }
+        return this;
+    }
+
+    /* Links this block right below the top of a stack. */
+    public final void insertBelow(Block top) {
+        this.link = top.link;
+        this.prev = top;
+        if (link != null) {
+            link.prev = this;
+        }
+        top.link = this;
+    }
+
+    /* Removes this block from the top of its stack and returns the new top. */
+    public final Block pop() {
+        final Block next = link;
+        if (next != null) {
+            next.prev = null;
+        }
+        link = null;
+        return next;
+    }
+
+    /* Unlinks this block from the stack it's in. Returns false if the block is at
+       the top of its stack since that can only be removed by the owner of the stack. */
+    public final boolean unlink() {
+        if (prev == null) return false;
+        prev.link = link;
+        if (link != null) {
+            link.prev = prev;
+        }
+        link = null;
+        prev = null;
+        return true;
+    }
+
     public final Block getLink() {
         return link;
     }
@@ -53,6 +139,71 @@ public class Block {
         this.av           = new AllocationVector(buffer.remaining() / miniBlockSize);
         this.buffer       = buffer;
         this.owner        = Capability.getLocal();
+        initRawAccess(buffer);
+    }
+
+    /* A large object occupies its whole buffer, so it has no AllocationVector and no
+       owner. */
+    public final void initLargeObject(long startAddress, ByteBuffer buffer,
+                                      boolean recyclable) {
+        this.startAddress = startAddress;
+        this.av           = null;
+        this.buffer       = buffer;
+        this.owner        = null;
+        this.recyclable   = recyclable;
+        initRawAccess(buffer);
+    }
+
+    public final boolean isRecyclable() {
+        return recyclable;
+    }
+
+    private final void initRawAccess(ByteBuffer buffer) {
+        this.rawAccess = false;
+        /* Read-only buffers, like read-only file mappings, go through the ByteBuffer so
+           that writes fail with an exception instead of a fault. */
+        if (!useRawAccess || buffer.isReadOnly() || !buffer.isDirect()) return;
+        final long address = UnsafeUtil.getBufferAddress(buffer);
+        if (address == 0) return;
+        this.baseOffset = address + buffer.position();
+        this.rawLimit   = buffer.remaining();
+        this.rawAccess  = true;
+    }
+
+    /* Detaches the buffer from a block that will never be used again and returns it.
+       Later accesses through stale references to the block fail instead of touching
+       the memory. The buffer stays reachable from the block so that its memory is not
+       reclaimed while an access that started before the release is still in
+       progress. */
+    public final ByteBuffer release() {
+        final ByteBuffer buffer = this.buffer;
+        this.rawAccess = false;
+        this.released  = buffer;
+        this.buffer    = null;
+        return buffer;
+    }
+
+    /* Prepares a pooled block to be allocated from by the current Capability. */
+    public final void reuse() {
+        this.owner  = Capability.getLocal();
+        this.pooled = false;
+    }
+
+    public final void setPooled() {
+        this.pooled = true;
+    }
+
+    public final Capability getOwner() {
+        return owner;
+    }
+
+    public final boolean isDirect() {
+        return buffer.isDirect();
+    }
+
+    /* Whether none of the block's miniblocks are allocated. */
+    public final boolean isFree() {
+        return av.isEmpty();
     }
 
     public final void initWith(Block source) {
@@ -61,6 +212,10 @@ public class Block {
             this.av           = source.av;
             this.buffer       = source.buffer;
             this.owner        = source.owner;
+            this.pooled       = source.pooled;
+            this.rawAccess    = source.rawAccess;
+            this.baseOffset   = source.baseOffset;
+            this.rawLimit     = source.rawLimit;
         }
     }
 
@@ -80,84 +235,265 @@ public class Block {
         return 0;
     }
 
-    public final void sendFreeMessage(long address) {
-        if (owner == Capability.getLocal()) {
-            free(address);
-        } else {
-            owner.free(address);
-        }
-    }
-
-    public final void free(long address) {
+    /* Returns true if the block has become free. */
+    public final boolean free(long address) {
         av.free((int)(address - startAddress)
             >>> Integer.numberOfTrailingZeros(getMiniBlockSize()));
+        return av.isEmpty();
     }
 
     public final ByteBuffer getBoundedBuffer(long address) {
         return (ByteBuffer) ((Buffer) buffer.duplicate()).position((int)(address - startAddress));
     }
 
+    /* Returns the native address that corresponds to the given address, or 0 if the
+       block is not direct or raw memory access is disabled. */
+    public final long getNativeAddress(long address) {
+        if (rawAccess) {
+            return baseOffset + (address - startAddress);
+        }
+        return 0;
+    }
+
+    /* Resizes the allocation at the address to hold n bytes without moving it.
+       Returns false if that's not possible. Only the owner may call this. */
+    public final boolean resize(long address, int n) {
+        if (slots != null || av == null) {
+            return n <= allocatedSize(address);
+        }
+        final int miniBlockSize = getMiniBlockSize();
+        final int idx = (int)(address - startAddress) / miniBlockSize;
+        final int miniblocks = (n + miniBlockSize - 1) / miniBlockSize;
+        return av.resize(idx, av.allocatedSize(idx), miniblocks);
+    }
+
     public final int allocatedSize(long address) {
+        if (slots != null) {
+            return 1 << slotBits;
+        }
+        if (av == null) {
+            return buffer.remaining();
+        }
         int miniBlockSize = getMiniBlockSize();
         int idx = (int)(address - startAddress) / miniBlockSize;
         return av.allocatedSize(idx) * miniBlockSize;
     }
 
     /* Reading from/writing to memory. */
+
+    /* Returns the native address to access width bytes at the address with, or 0 if
+       the access has to go through the ByteBuffer. */
+    private final long rawAddress(long address, int width) {
+        final long offset = address - startAddress;
+        if (rawAccess && offset >= 0 && offset <= rawLimit - width) {
+            return baseOffset + offset;
+        }
+        return 0;
+    }
+
     public final byte get(long address) {
+        final long raw = rawAddress(address, 1);
+        if (raw != 0) {
+            return UNSAFE.getByte(raw);
+        }
         return buffer.get((int)(address - startAddress));
     }
 
     public final short getShort(long address) {
+        final long raw = rawAddress(address, 2);
+        if (raw != 0) {
+            final short val = UNSAFE.getShort(raw);
+            return SWAP_BYTES? Short.reverseBytes(val) : val;
+        }
         return buffer.getShort((int)(address - startAddress));
     }
 
     public final char getChar(long address) {
+        final long raw = rawAddress(address, 2);
+        if (raw != 0) {
+            final char val = UNSAFE.getChar(raw);
+            return SWAP_BYTES? Character.reverseBytes(val) : val;
+        }
         return buffer.getChar((int)(address - startAddress));
     }
 
     public final int getInt(long address) {
+        final long raw = rawAddress(address, 4);
+        if (raw != 0) {
+            final int val = UNSAFE.getInt(raw);
+            return SWAP_BYTES? Integer.reverseBytes(val) : val;
+        }
         return buffer.getInt((int)(address - startAddress));
     }
 
     public final long getLong(long address) {
+        final long raw = rawAddress(address, 8);
+        if (raw != 0) {
+            final long val = UNSAFE.getLong(raw);
+            return SWAP_BYTES? Long.reverseBytes(val) : val;
+        }
         return buffer.getLong((int)(address - startAddress));
     }
 
     public final float getFloat(long address) {
+        if (rawAddress(address, 4) != 0) {
+            return Float.intBitsToFloat(getInt(address));
+        }
         return buffer.getFloat((int)(address - startAddress));
     }
 
     public final double getDouble(long address) {
+        if (rawAddress(address, 8) != 0) {
+            return Double.longBitsToDouble(getLong(address));
+        }
         return buffer.getDouble((int)(address - startAddress));
     }
 
     public final void put(long address, byte val) {
-        buffer.put((int)(address - startAddress), val);
+        final long raw = rawAddress(address, 1);
+        if (raw != 0) {
+            UNSAFE.putByte(raw, val);
+        } else {
+            buffer.put((int)(address - startAddress), val);
+        }
     }
 
     public final void putShort(long address, short val) {
-        buffer.putShort((int)(address - startAddress), val);
+        final long raw = rawAddress(address, 2);
+        if (raw != 0) {
+            UNSAFE.putShort(raw, SWAP_BYTES? Short.reverseBytes(val) : val);
+        } else {
+            buffer.putShort((int)(address - startAddress), val);
+        }
     }
 
     public final void putChar(long address, char val) {
-        buffer.putChar((int)(address - startAddress), val);
+        final long raw = rawAddress(address, 2);
+        if (raw != 0) {
+            UNSAFE.putChar(raw, SWAP_BYTES? Character.reverseBytes(val) : val);
+        } else {
+            buffer.putChar((int)(address - startAddress), val);
+        }
     }
 
     public final void putInt(long address, int val) {
-        buffer.putInt((int)(address - startAddress), val);
+        final long raw = rawAddress(address, 4);
+        if (raw != 0) {
+            UNSAFE.putInt(raw, SWAP_BYTES? Integer.reverseBytes(val) : val);
+        } else {
+            buffer.putInt((int)(address - startAddress), val);
+        }
     }
 
     public final void putLong(long address, long val) {
-        buffer.putLong((int)(address - startAddress), val);
+        final long raw = rawAddress(address, 8);
+        if (raw != 0) {
+            UNSAFE.putLong(raw, SWAP_BYTES? Long.reverseBytes(val) : val);
+        } else {
+            buffer.putLong((int)(address - startAddress), val);
+        }
     }
 
     public final void putFloat(long address, float val) {
-        buffer.putFloat((int)(address - startAddress), val);
+        if (rawAddress(address, 4) != 0) {
+            putInt(address, Float.floatToRawIntBits(val));
+        } else {
+            buffer.putFloat((int)(address - startAddress), val);
+        }
     }
 
     public final void putDouble(long address, double val) {
-        buffer.putDouble((int)(address - startAddress), val);
+        if (rawAddress(address, 8) != 0) {
+            putLong(address, Double.doubleToRawLongBits(val));
+        } else {
+            buffer.putDouble((int)(address - startAddress), val);
+        }
+    }
+
+    /* Slab Allocation */
+    public final boolean isSlab() {
+        return slots != null;
+    }
+
+    /* Turns a free block into a slab with slots of (1 << slotBits) bytes. */
+    public final void initSlab(int slotBits) {
+        final int numSlots = buffer.remaining() >>> slotBits;
+        final long[] slots = new long[(numSlots + 63) >>> 6];
+        /* Mark the bits past the last slot as allocated so that they're never handed out. */
+        final int extra = numSlots & 63;
+        if (extra != 0) {
+            slots[slots.length - 1] = -1L << extra;
+        }
+        this.slots     = slots;
+        this.slotBits  = slotBits;
+        this.freeSlots = numSlots;
+        this.slotHint  = 0;
+    }
+
+    /* Turns a free slab back into a regular block. */
+    public final void clearSlab() {
+        this.slots = null;
+    }
+
+    public final int getSlotBits() {
+        return slotBits;
+    }
+
+    public final int getNumSlots() {
+        return buffer.remaining() >>> slotBits;
+    }
+
+    public final int getFreeSlots() {
+        return freeSlots;
+    }
+
+    /* Returns 0 if the slab is full. */
+    public final long allocateSlot() {
+        if (freeSlots == 0) return 0;
+        final long[] slots = this.slots;
+        int i = slotHint;
+        long word;
+        while ((word = slots[i]) == -1L) {
+            i = (i + 1 == slots.length)? 0 : i + 1;
+        }
+        final int bit = Long.numberOfTrailingZeros(~word);
+        slots[i] = word | (1L << bit);
+        slotHint = i;
+        freeSlots--;
+        return startAddress + ((long)((i << 6) | bit) << slotBits);
+    }
+
+    /* Returns the number of free slots after freeing the slot at the address. */
+    public final int freeSlot(long address) {
+        final int slot = (int)((address - startAddress) >>> slotBits);
+        final int i = slot >>> 6;
+        final long mask = 1L << (slot & 63);
+        if ((slots[i] & mask) == 0) {
+            throw new IllegalArgumentException
+                ("Attempted to free memory address " + address + " which is not allocated!");
+        }
+        slots[i] &= ~mask;
+        return ++freeSlots;
+    }
+
+    private final List<Span> getSlotSpans() {
+        final LinkedList<Span> spans = new LinkedList<Span>();
+        final int numSlots = getNumSlots();
+        int spanSize = 0;
+        boolean allocated = false;
+        for (int slot = 0; slot < numSlots; slot++) {
+            final boolean slotAllocated = (slots[slot >>> 6] & (1L << (slot & 63))) != 0;
+            if (spanSize > 0 && slotAllocated != allocated) {
+                spans.add(new Span(allocated, spanSize));
+                spanSize = 0;
+            }
+            allocated = slotAllocated;
+            spanSize++;
+        }
+        if (spanSize > 0) {
+            spans.add(new Span(allocated, spanSize));
+        }
+        return spans;
     }
 
     /* Caching */
@@ -167,14 +503,16 @@ public class Block {
               ("Attempted to access memory address " + address +
                " which has not be allocated yet!");
         }
-        cb.set(this, startAddress, startAddress + buffer.remaining());
+        cb.set(address, this, startAddress, startAddress + buffer.remaining());
     }
 
     /* Monitoring */
     public final BlockStats getStatistics() {
-        int miniBlockSize = getMiniBlockSize();
+        final boolean slab = slots != null;
+        /* For slabs, the spans are measured in slots. */
+        int miniBlockSize = slab? (1 << slotBits) : getMiniBlockSize();
         ByteBuffer buffer = this.buffer.duplicate();
-        List<Span> spans  = av.getSpans();
+        List<Span> spans  = slab? getSlotSpans() : av.getSpans();
         for (Span span: spans) {
             int numBytes = span.size * miniBlockSize;
             if (span.allocated) {
@@ -185,6 +523,7 @@ public class Block {
                 ((Buffer)buffer).position(buffer.position() + numBytes);
             }
         }
-        return new BlockStats(startAddress, owner.getId(), buffer.isDirect(), spans);
+        return new BlockStats(startAddress, owner.getId(), buffer.isDirect(), pooled,
+                              slab, miniBlockSize, spans);
     }
 }
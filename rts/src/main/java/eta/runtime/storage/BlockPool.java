@@ -0,0 +1,63 @@
+package eta.runtime.storage;
+
+/* A pool of free blocks that is local to a Capability, segregated by the number of
+   blocks they span and whether they're direct. Each size class holds a bounded number
+   of blocks so that a single Capability can't hoard free memory - the rest overflows
+   to the global pool in ManagedHeap.
+
+   WARNING: Only the owning Capability may use the pool. */
+public class BlockPool {
+    /* Blocks that span more than this are always pooled globally. */
+    public static final int MAX_SIZE_CLASS = 16;
+    /* The maximum number of free blocks retained for each size class. */
+    public static final int MAX_CLASS_BLOCKS = 8;
+
+    /* The free blocks of each class are chained through Block.link. */
+    private final Block[] stacks = new Block[MAX_SIZE_CLASS << 1];
+    private final int[]   sizes  = new int[MAX_SIZE_CLASS << 1];
+
+    private static int sizeClass(int blocks, boolean direct) {
+        return ((blocks - 1) << 1) | (direct? 1 : 0);
+    }
+
+    /* Returns null if there are no free blocks of the given size. */
+    public Block take(int blocks, boolean direct) {
+        if (blocks > MAX_SIZE_CLASS) return null;
+        final int i = sizeClass(blocks, direct);
+        final Block block = stacks[i];
+        if (block != null) {
+            stacks[i] = block.link;
+            sizes[i]--;
+            block.link = null;
+        }
+        return block;
+    }
+
+    /* Returns false if the block should be pooled globally instead. */
+    public boolean offer(Block block, int blocks) {
+        if (blocks > MAX_SIZE_CLASS) return false;
+        final int i = sizeClass(blocks, block.isDirect());
+        if (sizes[i] >= MAX_CLASS_BLOCKS) return false;
+        block.link = stacks[i];
+        stacks[i] = block;
+        sizes[i]++;
+        return true;
+    }
+
+    /* Empties the pool and returns the free blocks chained through Block.link. */
+    public Block drain() {
+        Block blocks = null;
+        for (int i = 0; i < stacks.length; i++) {
+            Block block = stacks[i];
+            while (block != null) {
+                final Block next = block.link;
+                block.link = blocks;
+                blocks = block;
+                block = next;
+            }
+            stacks[i] = null;
+            sizes[i]  = 0;
+        }
+        return blocks;
+    }
+}
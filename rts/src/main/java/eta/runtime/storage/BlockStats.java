@@ -8,23 +8,38 @@ public class BlockStats {
     long startAddress;
     int capability;
     boolean direct;
+    boolean pooled;
+    boolean slab;
+    /* The size of the units that the spans are measured in, which is the slot size
+       for slabs. */
+    int miniBlockSize;
     List<Span> spans;
 
-    public BlockStats(long startAddress, int capability, boolean direct, List<Span> spans) {
-        this.startAddress = startAddress;
-        this.capability   = capability;
-        this.direct       = direct;
-        this.spans        = spans;
+    public BlockStats(long startAddress, int capability, boolean direct, boolean pooled,
+                      boolean slab, int miniBlockSize, List<Span> spans) {
+        this.startAddress  = startAddress;
+        this.capability    = capability;
+        this.direct        = direct;
+        this.pooled        = pooled;
+        this.slab          = slab;
+        this.miniBlockSize = miniBlockSize;
+        this.spans         = spans;
     }
 
     public long getTotalBytesAllocated() {
-        /* TODO: Implement */
-        return 0;
+        long bytes = 0;
+        for (Span span: spans) {
+            if (span.allocated) bytes += span.size;
+        }
+        return bytes * miniBlockSize;
     }
 
     public long getTotalBytesFree() {
-        /* TODO: Implement */
-        return 0;
+        long bytes = 0;
+        for (Span span: spans) {
+            if (!span.allocated) bytes += span.size;
+        }
+        return bytes * miniBlockSize;
     }
 
     public long getStartAddress() {
@@ -35,6 +50,15 @@ public class BlockStats {
         return direct;
     }
 
+    /* Whether the block is free and waiting to be reused. */
+    public boolean isPooled() {
+        return pooled;
+    }
+
+    public boolean isSlab() {
+        return slab;
+    }
+
     public List<Span> getSpans() {
         return spans;
     }
@@ -43,6 +67,10 @@ public class BlockStats {
         format(sb, "Start Address: %d", startAddress);
         format(sb, "Owner Capability: %d", capability);
         format(sb, "Direct: %b", direct);
+        format(sb, "Pooled: %b", pooled);
+        if (slab) {
+            format(sb, "Slot Size: %d bytes", miniBlockSize);
+        }
         blankLine(sb);
         format(sb, "Spans:");
         blankLine(sb);
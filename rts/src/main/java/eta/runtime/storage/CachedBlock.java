@@ -1,55 +1,44 @@
 package eta.runtime.storage;
 
 public class CachedBlock {
-    /* The cached block */
-    private Block block1;
-    /* Start of previous received block. */
-    private long lowerAddress1;
-    /* Start of the adjacent block. */
-    private long higherAddress1;
-
-    /* The cached block */
-    private Block block2;
-
-    /* Start of previous received block. */
-    private long lowerAddress2;
-    /* Start of the adjacent block. */
-    private long higherAddress2;
-
-    /* We have two cached buffers because it was observed that in practice, there are
-       cases where you read from one address, do some transformation, and write to another
-       address in a different block. In such cases, the cache would get invalidated constantly
-       making it unnecessary overhead. */
-
-    /* Controls which cached block to overwrite next. */
-    private boolean nextInvalidation;
+    /* A direct-mapped cache of the blocks that were recently accessed by a thread. An
+       entry is selected by the page of the address and holds the address range of its
+       block, so a lookup is a single range check. Code that reads from one buffer and
+       writes to another rarely sees the two evict each other, unlike with a cache of
+       just the last couple of blocks. */
+
+    /* Must be a power of 2. */
+    private static final int CACHE_SIZE = 64;
+    private static final int CACHE_MASK = CACHE_SIZE - 1;
+    /* Only used to pick an entry, so it need not match the block size of the heap. */
+    private static final int PAGE_BITS  = 12;
+
+    private final Block[] blocks = new Block[CACHE_SIZE];
+    /* The start and end addresses of each cached block, interleaved. */
+    private final long[] ranges = new long[CACHE_SIZE << 1];
 
     private CachedBlock() {}
 
+    private static int index(long address) {
+        return (int)(address >>> PAGE_BITS) & CACHE_MASK;
+    }
+
     /* Returns null if address is not within range. */
     private Block get(long address) {
-        /* TODO: Make this more efficient using the knowledge that the difference is constant
-                 (blockSize) and that blockSize will be a power of 2. */
-        if (address >= lowerAddress1 && address < higherAddress1) {
-            return block1;
-        } else if (address >= lowerAddress2 && address < higherAddress2) {
-            return block2;
-        } else {
-            return null;
+        final int i = index(address);
+        final int j = i << 1;
+        if (address >= ranges[j] && address < ranges[j + 1]) {
+            return blocks[i];
         }
+        return null;
     }
 
-    void set(Block block, long lowerAddress, long higherAddress) {
-        if (nextInvalidation) {
-            this.block2 = block;
-            this.lowerAddress2 = lowerAddress;
-            this.higherAddress2 = higherAddress;
-        } else {
-            this.block1 = block;
-            this.lowerAddress1 = lowerAddress;
-            this.higherAddress1 = higherAddress;
-        }
-        nextInvalidation = !nextInvalidation;
+    void set(long address, Block block, long lowerAddress, long higherAddress) {
+        final int i = index(address);
+        final int j = i << 1;
+        blocks[i]     = block;
+        ranges[j]     = lowerAddress;
+        ranges[j + 1] = higherAddress;
     }
 
     /* Returns null if cache miss. */
@@ -14,4 +14,25 @@ public class DefaultLocalHeap implements LocalHeap {
 
     @Override
     public void setActiveBlock(Block block, boolean direct, boolean supr) {}
+
+    @Override
+    public boolean detachBlock(Block block) {
+        return false;
+    }
+
+    @Override
+    public BlockPool getBlockPool() {
+        return null;
+    }
+
+    @Override
+    public Block getSlabs(int sizeClass, boolean direct) {
+        return null;
+    }
+
+    @Override
+    public void setSlabs(int sizeClass, boolean direct, Block slabs) {}
+
+    @Override
+    public void processFreeMessages() {}
 }
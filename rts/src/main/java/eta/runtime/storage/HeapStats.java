@@ -10,21 +10,98 @@ public class HeapStats {
     int miniBlockSize;
     List<NurseryStats> nurseryStats;
 
-    public HeapStats(int nurserySize, int blockSize, int miniBlockSize, List<NurseryStats> nurseryStats) {
-        this.nurserySize   = nurserySize;
-        this.blockSize     = blockSize;
-        this.miniBlockSize = miniBlockSize;
-        this.nurseryStats  = nurseryStats;
+    /* Free block pool counters, in blocks */
+    long blocksAllocated;
+    long blocksReleased;
+    long blocksReused;
+
+    /* Large object counters */
+    int  largeObjects;
+    long largeBytesAllocated;
+    long largeBytesFreed;
+
+    public HeapStats(int nurserySize, int blockSize, int miniBlockSize,
+                     List<NurseryStats> nurseryStats, long blocksAllocated,
+                     long blocksReleased, long blocksReused, int largeObjects,
+                     long largeBytesAllocated, long largeBytesFreed) {
+        this.nurserySize     = nurserySize;
+        this.blockSize       = blockSize;
+        this.miniBlockSize   = miniBlockSize;
+        this.nurseryStats    = nurseryStats;
+        this.blocksAllocated = blocksAllocated;
+        this.blocksReleased  = blocksReleased;
+        this.blocksReused    = blocksReused;
+        this.largeObjects        = largeObjects;
+        this.largeBytesAllocated = largeBytesAllocated;
+        this.largeBytesFreed     = largeBytesFreed;
     }
 
     public long getTotalBytesAllocated() {
-        /* TODO: Implement */
-        return 0;
+        long bytes = 0;
+        for (NurseryStats stats: nurseryStats) {
+            bytes += stats.getTotalBytesAllocated();
+        }
+        return bytes;
     }
 
     public long getTotalBytesFree() {
-        /* TODO: Implement */
-        return 0;
+        long bytes = 0;
+        for (NurseryStats stats: nurseryStats) {
+            bytes += stats.getTotalBytesFree();
+        }
+        return bytes;
+    }
+
+    public long getTotalBytesFragmented() {
+        long bytes = 0;
+        for (NurseryStats stats: nurseryStats) {
+            bytes += stats.getTotalBytesFragmented();
+        }
+        return bytes;
+    }
+
+    /* The fraction of the memory in blocks that are in use which is free. */
+    public double getFragmentation() {
+        final long fragmented = getTotalBytesFragmented();
+        final long used       = getTotalBytesAllocated() + fragmented;
+        return (used == 0)? 0.0 : (double) fragmented / used;
+    }
+
+    /* The number of blocks taken from the nurseries. */
+    public long getBlocksAllocated() {
+        return blocksAllocated;
+    }
+
+    /* The number of blocks that were returned to the free block pool. */
+    public long getBlocksReleased() {
+        return blocksReleased;
+    }
+
+    /* The number of blocks that were allocated from the free block pool. */
+    public long getBlocksReused() {
+        return blocksReused;
+    }
+
+    public long getBlocksPooled() {
+        return blocksReleased - blocksReused;
+    }
+
+    /* The number of large objects that are currently allocated. */
+    public int getLargeObjects() {
+        return largeObjects;
+    }
+
+    /* The total size of the large objects that were ever allocated. */
+    public long getLargeBytesAllocated() {
+        return largeBytesAllocated;
+    }
+
+    public long getLargeBytesFreed() {
+        return largeBytesFreed;
+    }
+
+    public long getLargeBytesLive() {
+        return largeBytesAllocated - largeBytesFreed;
     }
 
     public int getNurserySize() {
@@ -59,6 +136,18 @@ public class HeapStats {
         format(sb, "MiniBlock Size: %d bytes", miniBlockSize);
         format(sb, "Total Nurseries: %d", nurseryStats.size());
         blankLine(sb);
+        format(sb, " Blocks Allocated: %d", blocksAllocated);
+        format(sb, "  Blocks Released: %d", blocksReleased);
+        format(sb, "    Blocks Reused: %d", blocksReused);
+        format(sb, "    Blocks Pooled: %d", getBlocksPooled());
+        format(sb, "  Bytes Allocated: %d", getTotalBytesAllocated());
+        format(sb, "       Bytes Free: %d", getTotalBytesFree());
+        format(sb, "    Fragmentation: %.2f%%", getFragmentation() * 100);
+        blankLine(sb);
+        format(sb, "        Large Objects: %d", largeObjects);
+        format(sb, "Large Bytes Allocated: %d", largeBytesAllocated);
+        format(sb, "    Large Bytes Freed: %d", largeBytesFreed);
+        blankLine(sb);
         header(sb, "Nurseries");
         blankLine(sb);
         int i = 0;
@@ -0,0 +1,77 @@
+package eta.runtime.storage;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* A pool of the direct buffers of freed large objects, segregated by capacity, so
+   that their memory is reused by the next large allocation of a similar size instead
+   of waiting for the garbage collector to release it. The memory can't be released
+   eagerly since other threads may still access it through stale addresses or views,
+   but handing it out again is safe.
+
+   Capacities are rounded up to one of CLASS_STEPS classes per power of two, which
+   wastes at most 1/CLASS_STEPS of a buffer. The pool retains at most maxBytes, and
+   the buffers that don't fit are left to the garbage collector.
+
+   The pool may be used by any thread. */
+public class LargeBufferPool {
+    public static final int CLASS_STEPS = 4;
+    /* Buffers with a larger capacity aren't rounded or pooled. */
+    public static final int MAX_POOLED_CAPACITY = 1 << 30;
+
+    private final long maxBytes;
+    private final AtomicLong bytes = new AtomicLong();
+    private final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<ByteBuffer>> buffers
+        = new ConcurrentHashMap<Integer, ConcurrentLinkedQueue<ByteBuffer>>();
+
+    public LargeBufferPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /* The capacity of the buffer to allocate for n bytes so that it can be pooled. */
+    public static int getCapacity(int n) {
+        if (n <= CLASS_STEPS || n > MAX_POOLED_CAPACITY) return n;
+        final int step = Integer.highestOneBit(n - 1) / CLASS_STEPS;
+        return (n + step - 1) & ~(step - 1);
+    }
+
+    /* Returns a pooled buffer limited to n bytes, or null if there is none. */
+    public ByteBuffer take(int n) {
+        final int capacity = getCapacity(n);
+        final ConcurrentLinkedQueue<ByteBuffer> queue = buffers.get(capacity);
+        if (queue == null) return null;
+        final ByteBuffer buffer = queue.poll();
+        if (buffer == null) return null;
+        bytes.addAndGet(-capacity);
+        ((Buffer) buffer).clear();
+        ((Buffer) buffer).limit(n);
+        return buffer;
+    }
+
+    /* Returns false if the buffer wasn't pooled. */
+    public boolean offer(ByteBuffer buffer) {
+        final int capacity = buffer.capacity();
+        if (!buffer.isDirect() || capacity != getCapacity(capacity)) return false;
+        if (bytes.addAndGet(capacity) > maxBytes) {
+            bytes.addAndGet(-capacity);
+            return false;
+        }
+        ConcurrentLinkedQueue<ByteBuffer> queue = buffers.get(capacity);
+        if (queue == null) {
+            final ConcurrentLinkedQueue<ByteBuffer> newQueue =
+                new ConcurrentLinkedQueue<ByteBuffer>();
+            queue = buffers.putIfAbsent(capacity, newQueue);
+            if (queue == null) queue = newQueue;
+        }
+        queue.offer(buffer);
+        return true;
+    }
+
+    /* The number of bytes retained by the pool. */
+    public long getBytes() {
+        return bytes.get();
+    }
+}
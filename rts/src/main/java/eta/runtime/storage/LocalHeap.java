@@ -3,4 +3,14 @@ package eta.runtime.storage;
 public interface LocalHeap {
     long allocateLocal(int miniblocks, boolean direct, boolean supr);
     void setActiveBlock(Block block, boolean direct, boolean supr);
+    /* Removes a block that has become free from the active blocks so that it can be
+       reused. Returns false if it should stay active instead. */
+    boolean detachBlock(Block block);
+    /* Returns null if free blocks should always be pooled globally. */
+    BlockPool getBlockPool();
+    /* The stack of slabs with free slots for a size class. */
+    Block getSlabs(int sizeClass, boolean direct);
+    void setSlabs(int sizeClass, boolean direct, Block slabs);
+    /* Frees the memory that other threads have asked to be freed. */
+    void processFreeMessages();
 }
@@ -1,7 +1,20 @@
 package eta.runtime.storage;
 
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import eta.runtime.Runtime;
+import eta.runtime.stg.Capability;
 
 public class ManagedHeap {
     /* All of the sizes *must* be a power of 2. */
@@ -17,13 +30,85 @@ public class ManagedHeap {
     private final int miniBlockMask;
     private final int miniBlockBits;
 
+    /* Allocations of up to slabThreshold bytes are served from slabs, which are blocks
+       divided into slots of a power-of-2 size class starting from MIN_SLOT_SIZE. A
+       threshold of 0 disables slab allocation. */
+    private final int slabThreshold;
+
+    public static final int MIN_SLOT_BITS       = 3;
+    public static final int MIN_SLOT_SIZE       = 1 << MIN_SLOT_BITS;
+    public static final int MAX_SLAB_THRESHOLD  = 256;
+    public static final int NUM_SLAB_CLASSES    =
+        Integer.numberOfTrailingZeros(MAX_SLAB_THRESHOLD) - MIN_SLOT_BITS + 1;
+
+    /* Allocations of more than largeObjectThreshold bytes each get a buffer of their
+       own in a separate region of the address space starting at LARGE_OBJECT_BASE, so
+       that they don't fragment the nurseries. The direct buffers of freed objects are
+       recycled through largeBufferPool. A threshold of 0 disables the large object
+       space. */
+    private final int largeObjectThreshold;
+
+    public static final long LARGE_OBJECT_BASE = 1L << 62;
+
     /* Nursery storage */
     private volatile Nursery[] nurseries;
     private volatile Nursery activeNursery;
 
+    /* The page table that maps addresses to blocks. The first level is indexed by
+       nursery and the second level is the nursery's own array of blocks, so a lookup
+       is just two array accesses without any locking. The first level is replaced
+       wholesale when a nursery is added. */
+    private volatile Block[][] blockTable;
+
     private final Object heapLock = new Object();
 
+    /* The global free block pool, which is keyed by the number of blocks and whether
+       they're direct. It holds the free blocks that overflow the Capability-local
+       pools. */
+    private final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<Block>> freeBlocks
+        = new ConcurrentHashMap<Integer, ConcurrentLinkedQueue<Block>>();
+
+    /* Free block pool counters, in blocks */
+    private final AtomicLong blocksAllocated = new AtomicLong();
+    private final AtomicLong blocksReleased  = new AtomicLong();
+    private final AtomicLong blocksReused    = new AtomicLong();
+
+    /* Large object storage, keyed by the start address of each object. Addresses are
+       handed out in increasing order and never reused. */
+    private final ConcurrentSkipListMap<Long, Block> largeObjects
+        = new ConcurrentSkipListMap<Long, Block>();
+    private final AtomicLong largeObjectTop = new AtomicLong(LARGE_OBJECT_BASE);
+    private final LargeBufferPool largeBufferPool =
+        new LargeBufferPool(Runtime.getLargeObjectPoolSize() * 1024L * 1024L);
+
+    /* Large object counters, in bytes */
+    private final AtomicLong largeBytesAllocated = new AtomicLong();
+    private final AtomicLong largeBytesFreed     = new AtomicLong();
+
     public ManagedHeap(int nurserySize, int blockSize, int miniBlockSize) {
+        this(nurserySize, blockSize, miniBlockSize, 0);
+    }
+
+    public ManagedHeap(int nurserySize, int blockSize, int miniBlockSize,
+                       int slabThreshold) {
+        this(nurserySize, blockSize, miniBlockSize, slabThreshold, 0);
+    }
+
+    public ManagedHeap(int nurserySize, int blockSize, int miniBlockSize,
+                       int slabThreshold, int largeObjectThreshold) {
+        if (slabThreshold != 0 &&
+            (Integer.bitCount(slabThreshold) != 1 || slabThreshold < MIN_SLOT_SIZE ||
+             slabThreshold > MAX_SLAB_THRESHOLD || slabThreshold >= blockSize)) {
+            throw new IllegalArgumentException
+                ("The slab threshold must be a power of 2 between " + MIN_SLOT_SIZE +
+                 " and " + MAX_SLAB_THRESHOLD + " bytes that is less than the block size.");
+        }
+        if (largeObjectThreshold != 0 && largeObjectThreshold < blockSize) {
+            throw new IllegalArgumentException
+                ("The large object threshold must be at least the block size.");
+        }
+        this.slabThreshold = slabThreshold;
+        this.largeObjectThreshold = largeObjectThreshold;
         this.nurserySize   = nurserySize;
         this.blockSize     = blockSize;
         this.miniBlockSize = miniBlockSize;
@@ -36,11 +121,18 @@ public class ManagedHeap {
         this.miniBlockBits = Integer.numberOfTrailingZeros(miniBlockSize);
 
         final Nursery nursery = allocateNursery(blockSize);
-        nurseries = new Nursery[] { nursery };
+        nurseries  = new Nursery[] { nursery };
+        blockTable = new Block[][] { nursery.getBlocks() };
         setActiveNursery(nursery);
     }
 
     public long allocateBuffer(int n, boolean direct, LocalHeap localHeap) {
+        if (n > 0 && n <= slabThreshold) {
+            return allocateSlot(n, direct, localHeap);
+        }
+        if (largeObjectThreshold > 0 && n > largeObjectThreshold) {
+            return allocateLargeObject(n, direct);
+        }
         int miniblocks = (n + miniBlockMask) >>> miniBlockBits;
         int blocks     = Math.max(1, (n + blockMask) >>> blockBits);
         boolean supr   = blocks > 1;
@@ -48,7 +140,7 @@ public class ManagedHeap {
         long address = localHeap.allocateLocal(miniblocks, direct, supr);
         if (address == 0) {
             /* Second, try allocating a new block from the OS. */
-            Block block = allocateBlock(blocks, direct);
+            Block block = allocateBlock(blocks, direct, localHeap);
             block.allocate(miniblocks);
             address = block.getAddress();
             localHeap.setActiveBlock(block, direct, supr);
@@ -57,7 +149,15 @@ public class ManagedHeap {
     }
 
     public Block allocateBlock(int blocks, boolean direct) {
-        /* TODO: Implement the free block pool */
+        return allocateBlock(blocks, direct, DefaultLocalHeap.getInstance());
+    }
+
+    public Block allocateBlock(int blocks, boolean direct, LocalHeap localHeap) {
+        Block block = takeFreeBlock(blocks, direct, localHeap);
+        if (block != null) {
+            return block;
+        }
+        blocksAllocated.addAndGet(blocks);
         return activeNursery
             .allocateBlocks(blocks,
                             allocateAnonymousBuffer(blocks * blockSize, direct),
@@ -108,7 +208,13 @@ public class ManagedHeap {
         final Nursery[] newNurseries = new Nursery[numNurseries + 1];
         System.arraycopy(this.nurseries, 0, newNurseries, 0, numNurseries);
         newNurseries[numNurseries] = nursery;
-        this.nurseries = newNurseries;
+        final Block[][] newBlockTable = new Block[numNurseries + 1][];
+        System.arraycopy(this.blockTable, 0, newBlockTable, 0, numNurseries);
+        newBlockTable[numNurseries] = nursery.getBlocks();
+        /* The table is published first so that a block is always reachable by the
+           time it can be allocated from the new nursery. */
+        this.blockTable = newBlockTable;
+        this.nurseries  = newNurseries;
     }
 
     public void setActiveNursery(final Nursery nursery) {
@@ -116,31 +222,265 @@ public class ManagedHeap {
     }
 
     public Block getBlock(final long address) {
+        if (address >= LARGE_OBJECT_BASE) {
+            return getLargeObject(address);
+        }
         if (address < blockSize) {
             throwIllegalAddressException
                 (address, "Exceeded lower bound of the address space: "
                  + showAddress(blockSize));
         }
         /* We subtract `blockSize` since all addresses start from there. */
-        final long normalizedAddress = address - blockSize;
-        final int nurseryIndex = (int) (normalizedAddress >>> (nurseryBits + blockBits));
-        final int blockIndex   = (int)((normalizedAddress >>> blockBits) & nurseryMask);
-        final int numNurseries = this.nurseries.length;
-        if (nurseryIndex >= numNurseries) {
-            final long upperBound = numNurseries * nurserySize * blockSize;
+        final long page = (address - blockSize) >>> blockBits;
+        final Block[][] table = blockTable;
+        final long nurseryIndex = page >>> nurseryBits;
+        if (nurseryIndex >= table.length) {
+            final long upperBound = (long) table.length * nurserySize * blockSize;
             throwIllegalAddressException
                 (address, "Exceeded upper bound of the address space: " +
                  showAddress(upperBound));
         }
-        return nurseries[nurseryIndex].getBlock(blockIndex);
+        return table[(int) nurseryIndex][(int) page & nurseryMask];
     }
 
+    /* The memory is freed by the owner of the block it belongs to, so other threads
+       send it a message instead. */
     public void attemptFree(long address) {
-        getBlock(address).sendFreeMessage(address);
+        if (address >= LARGE_OBJECT_BASE) {
+            freeLargeObject(address);
+            return;
+        }
+        final Block block = getBlock(address);
+        final Capability owner = block.getOwner();
+        if (owner == Capability.getLocal()) {
+            free(block, address);
+        } else {
+            owner.free(address);
+        }
+    }
+
+    /* For threads that aren't Capabilities, which have to ask the owner to free the
+       memory. */
+    public void sendFree(long address) {
+        if (address >= LARGE_OBJECT_BASE) {
+            freeLargeObject(address);
+        } else {
+            getBlock(address).getOwner().free(address);
+        }
     }
 
     public void free(long address) {
-        getBlock(address).free(address);
+        if (address >= LARGE_OBJECT_BASE) {
+            freeLargeObject(address);
+        } else {
+            free(getBlock(address), address);
+        }
+    }
+
+    private void free(Block block, long address) {
+        if (block.isSlab()) {
+            freeSlot(block, address);
+        } else if (block.free(address)) {
+            releaseBlock(block);
+        }
+    }
+
+    /* Attempts to resize the allocation at the address to n bytes in place, which
+       succeeds for growth only if the miniblocks that follow it are free. Returns false
+       if the memory has to be moved instead. */
+    public boolean resizeBuffer(long address, int n) {
+        if (n <= 0) return false;
+        final Block block = getBlock(address);
+        if (block.isSlab() || address >= LARGE_OBJECT_BASE) {
+            return n <= block.allocatedSize(address);
+        }
+        /* The allocation vector is only modified by the owner of the block. */
+        if (block.getOwner() != Capability.getLocal()) return false;
+        return block.resize(address, n);
+    }
+
+    /** Large Object Allocation **/
+
+    private long allocateLargeObject(int n, boolean direct) {
+        if (!direct) {
+            return allocateLargeObject(allocateAnonymousBuffer(n, false), false);
+        }
+        ByteBuffer buffer = largeBufferPool.take(n);
+        if (buffer == null) {
+            /* The buffer is rounded up so that it can be pooled once it's freed. */
+            buffer = allocateAnonymousBuffer(LargeBufferPool.getCapacity(n), true);
+            ((Buffer) buffer).limit(n);
+        }
+        return allocateLargeObject(buffer, true);
+    }
+
+    /* Makes the remaining bytes of a buffer that was obtained elsewhere, like a
+       memory-mapped file, addressable as a large object. The buffer is released
+       when the object is freed. */
+    public long allocateLargeObject(ByteBuffer buffer) {
+        return allocateLargeObject(buffer, false);
+    }
+
+    private long allocateLargeObject(ByteBuffer buffer, boolean recyclable) {
+        final int n = buffer.remaining();
+        /* The objects are spaced a block apart so that an address just past the end
+           of one object never refers to the next one. */
+        final long span = (((long) n + blockMask) & ~((long) blockMask)) + blockSize;
+        final long address = largeObjectTop.getAndAdd(span);
+        final Block block = new Block();
+        block.initLargeObject(address, buffer, recyclable);
+        largeObjects.put(address, block);
+        largeBytesAllocated.addAndGet(n);
+        return address;
+    }
+
+    private Block getLargeObject(long address) {
+        final Map.Entry<Long, Block> entry = largeObjects.floorEntry(address);
+        if (entry == null) {
+            throwIllegalAddressException(address, "Not within a large object.");
+        }
+        final Block block = entry.getValue();
+        if (address - block.getAddress() >= block.getSize()) {
+            throwIllegalAddressException
+                (address, "Exceeded upper bound of the large object at " +
+                 showAddress(block.getAddress()));
+        }
+        return block;
+    }
+
+    /* Large objects can be freed by any thread since they're not owned by a
+       Capability. The memory can't be unmapped right away since a concurrent access
+       through a stale reference would then touch unmapped memory. Instead, the
+       buffers the heap allocated are pooled for the next large allocations, and the
+       rest are left to the garbage collector. */
+    private void freeLargeObject(long address) {
+        final Block block = largeObjects.get(address);
+        if (block == null || !largeObjects.remove(address, block)) {
+            throw new IllegalArgumentException
+                ("Attempted to free memory address " + showAddress(address) +
+                 " which is not an allocated large object!");
+        }
+        largeBytesFreed.addAndGet(block.getSize());
+        final ByteBuffer buffer = block.release();
+        if (block.isRecyclable()) {
+            largeBufferPool.offer(buffer);
+        }
+    }
+
+    /** Slab Allocation **/
+
+    private long allocateSlot(int n, boolean direct, LocalHeap localHeap) {
+        final int sizeClass = (n <= MIN_SLOT_SIZE)? 0 :
+            (32 - Integer.numberOfLeadingZeros(n - 1)) - MIN_SLOT_BITS;
+        /* Slots freed by other threads are only returned once the messages are processed. */
+        localHeap.processFreeMessages();
+        /* The slabs with free slots are kept in a stack, chained like the active
+           blocks, and slots are always allocated from the top. Full slabs are dropped
+           from the stack until a slot is freed in them. */
+        Block slab = localHeap.getSlabs(sizeClass, direct);
+        if (slab == null) {
+            slab = allocateBlock(1, direct, localHeap);
+            slab.initSlab(MIN_SLOT_BITS + sizeClass);
+            localHeap.setSlabs(sizeClass, direct, slab.pushOnto(null));
+        }
+        final long address = slab.allocateSlot();
+        if (slab.getFreeSlots() == 0) {
+            localHeap.setSlabs(sizeClass, direct, slab.pop());
+        }
+        return address;
+    }
+
+    private void freeSlot(Block slab, long address) {
+        final int freeSlots = slab.freeSlot(address);
+        final int sizeClass = slab.getSlotBits() - MIN_SLOT_BITS;
+        final boolean direct = slab.isDirect();
+        final Capability owner = slab.getOwner();
+        if (freeSlots == 1) {
+            /* The slab was full, so it's not in the stack anymore. It goes below the
+               top so that the slab that is being allocated from gets filled first. */
+            final Block top = owner.getSlabs(sizeClass, direct);
+            if (top == null) {
+                owner.setSlabs(sizeClass, direct, slab.pushOnto(null));
+            } else {
+                slab.insertBelow(top);
+            }
+        } else if (freeSlots == slab.getNumSlots() && slab.unlink()) {
+            /* Like with the active blocks, the slab on top of the stack is kept. */
+            slab.clearSlab();
+            poolBlock(slab, owner, 1);
+        }
+    }
+
+    /** Free Block Pool **/
+
+    /* Called by the owner of a block once it has become free. */
+    private void releaseBlock(Block block) {
+        /* The blocks that follow the first block of a super block are copies, so
+           make sure we're dealing with the one that's in the active blocks. */
+        block = getBlock(block.getAddress());
+        final Capability owner = block.getOwner();
+        if (!owner.detachBlock(block)) return;
+        poolBlock(block, owner, block.getSize() >>> blockBits);
+    }
+
+    private void poolBlock(Block block, Capability owner, int blocks) {
+        block.setPooled();
+        markBlocks(block, blocks);
+        blocksReleased.addAndGet(blocks);
+        final BlockPool pool = owner.getBlockPool();
+        if (pool == null || !pool.offer(block, blocks)) {
+            getFreeBlockQueue(blocks, block.isDirect()).offer(block);
+        }
+    }
+
+    private Block takeFreeBlock(int blocks, boolean direct, LocalHeap localHeap) {
+        final BlockPool pool = localHeap.getBlockPool();
+        Block block = (pool == null)? null : pool.take(blocks, direct);
+        if (block == null) {
+            final ConcurrentLinkedQueue<Block> queue = freeBlocks.get(freeBlockKey(blocks, direct));
+            if (queue == null) return null;
+            block = queue.poll();
+            if (block == null) return null;
+        }
+        block.reuse();
+        markBlocks(block, blocks);
+        blocksReused.addAndGet(blocks);
+        return block;
+    }
+
+    /* Moves the blocks of a Capability's pool to the global pool, which is done when
+       a Capability goes away. */
+    public void releaseBlockPool(BlockPool pool) {
+        Block block = pool.drain();
+        while (block != null) {
+            final Block next = block.link;
+            block.link = null;
+            getFreeBlockQueue(block.getSize() >>> blockBits, block.isDirect()).offer(block);
+            block = next;
+        }
+    }
+
+    /* Propagates the state of the first block to the rest of the blocks it spans. */
+    private void markBlocks(Block block, int blocks) {
+        final long address = block.getAddress();
+        for (int i = 1; i < blocks; i++) {
+            getBlock(address + ((long) i << blockBits)).initWith(block);
+        }
+    }
+
+    private ConcurrentLinkedQueue<Block> getFreeBlockQueue(int blocks, boolean direct) {
+        final Integer key = freeBlockKey(blocks, direct);
+        ConcurrentLinkedQueue<Block> queue = freeBlocks.get(key);
+        if (queue == null) {
+            queue = new ConcurrentLinkedQueue<Block>();
+            final ConcurrentLinkedQueue<Block> oldQueue = freeBlocks.putIfAbsent(key, queue);
+            if (oldQueue != null) queue = oldQueue;
+        }
+        return queue;
+    }
+
+    private static Integer freeBlockKey(int blocks, boolean direct) {
+        return Integer.valueOf((blocks << 1) | (direct? 1 : 0));
     }
 
     private static void throwIllegalAddressException(long address, String message) {
@@ -153,11 +493,39 @@ public class ManagedHeap {
     }
 
     private static ByteBuffer allocateAnonymousBuffer(int n, boolean direct) {
-        return (direct?
-                /* Off-Heap Memory */
-                ByteBuffer.allocateDirect(n):
-                /* Heap Memory */
-                ByteBuffer.allocate(n));
+        if (!direct) {
+            /* Heap Memory */
+            return ByteBuffer.allocate(n);
+        }
+        try {
+            /* Off-Heap Memory */
+            return ByteBuffer.allocateDirect(n);
+        } catch (OutOfMemoryError e) {
+            if (!Runtime.shouldSpillDirectMemory()) throw e;
+            return allocateSpillBuffer(n);
+        }
+    }
+
+    /* Maps a fresh temporary file, which is deleted right away so that its space is
+       reclaimed as soon as the mapping is released. */
+    private static ByteBuffer allocateSpillBuffer(int n) {
+        File file = null;
+        try {
+            file = File.createTempFile("eta-spill", null);
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, n);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            throw new OutOfMemoryError("Unable to spill " + n +
+                                       " bytes of direct memory to disk: " + e);
+        } finally {
+            if (file != null && !file.delete()) {
+                file.deleteOnExit();
+            }
+        }
     }
 
     /* Monitoring */
@@ -167,6 +535,9 @@ public class ManagedHeap {
         for (Nursery nursery : nurseries) {
             nurseryStats.add(nursery.getStatistics());
         }
-        return new HeapStats(nurserySize, blockSize, miniBlockSize, nurseryStats);
+        return new HeapStats(nurserySize, blockSize, miniBlockSize, nurseryStats,
+                             blocksAllocated.get(), blocksReleased.get(),
+                             blocksReused.get(), largeObjects.size(),
+                             largeBytesAllocated.get(), largeBytesFreed.get());
     }
 }
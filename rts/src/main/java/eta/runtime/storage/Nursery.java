@@ -107,6 +107,10 @@ public class Nursery {
         return blocks[blockIndex];
     }
 
+    Block[] getBlocks() {
+        return blocks;
+    }
+
     /* Monitoring */
     public NurseryStats getStatistics() {
         ArrayList<BlockStats> blockStats = new ArrayList<BlockStats>(numBlocks);
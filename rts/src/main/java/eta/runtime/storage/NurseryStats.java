@@ -14,13 +14,30 @@ public class NurseryStats {
     }
 
     public long getTotalBytesAllocated() {
-        /* TODO: Implement */
-        return 0;
+        long bytes = 0;
+        for (BlockStats stats: blockStats) {
+            bytes += stats.getTotalBytesAllocated();
+        }
+        return bytes;
     }
 
     public long getTotalBytesFree() {
-        /* TODO: Implement */
-        return 0;
+        long bytes = 0;
+        for (BlockStats stats: blockStats) {
+            bytes += stats.getTotalBytesFree();
+        }
+        return bytes;
+    }
+
+    /* The free bytes in blocks that are in use, excluding the pooled blocks. */
+    public long getTotalBytesFragmented() {
+        long bytes = 0;
+        for (BlockStats stats: blockStats) {
+            if (!stats.isPooled()) {
+                bytes += stats.getTotalBytesFree();
+            }
+        }
+        return bytes;
     }
 
     public long getStartAddress() {
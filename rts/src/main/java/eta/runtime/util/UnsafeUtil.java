@@ -3,6 +3,8 @@ package eta.runtime.util;
 
 import sun.misc.Unsafe;
 import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteOrder;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 
@@ -21,6 +23,38 @@ public class UnsafeUtil {
         UNSAFE = unsafe;
     }
 
+    /* Whether the platform supports unaligned memory accesses, which is required
+       for reading multi-byte values at arbitrary addresses. */
+    public static final boolean UNALIGNED_ACCESS;
+
+    /* Whether the native byte order differs from the default order of ByteBuffers. */
+    public static final boolean SWAP_BYTES =
+        ByteOrder.nativeOrder() != ByteOrder.BIG_ENDIAN;
+
+    private static final long BUFFER_ADDRESS_OFFSET;
+
+    static {
+        final String arch = System.getProperty("os.arch");
+        UNALIGNED_ACCESS = arch.equals("i386") || arch.equals("x86")
+                        || arch.equals("amd64") || arch.equals("x86_64")
+                        || arch.equals("aarch64") || arch.equals("ppc64le");
+        long bufferAddressOffset = -1;
+        if (UNSAFE != null) {
+            try {
+                bufferAddressOffset = UNSAFE.objectFieldOffset
+                    (Buffer.class.getDeclaredField("address"));
+            } catch (Exception e) {}
+        }
+        BUFFER_ADDRESS_OFFSET = bufferAddressOffset;
+    }
+
+    /* Returns the native address of the start of a direct buffer or 0 if it cannot be
+       determined. */
+    public static long getBufferAddress(Buffer buffer) {
+        if (BUFFER_ADDRESS_OFFSET < 0 || !buffer.isDirect()) return 0;
+        return UNSAFE.getLong(buffer, BUFFER_ADDRESS_OFFSET);
+    }
+
     private static Unsafe findUnsafe() {
         try {
             return Unsafe.getUnsafe();
@@ -0,0 +1,114 @@
+package eta.runtime.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/* A bounded, single-owner, multi-thief deque based on the Chase-Lev work-stealing
+   deque. The owner pushes and pops from the bottom while any other thread may steal
+   from the top. Since the deque is bounded, the underlying buffer is never resized and
+   push() will fail when the deque is full so that the caller can overflow elsewhere.
+
+   WARNING: push() and pop() must only be called by the owner thread. */
+public class WorkStealingDeque<E> {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final AtomicReferenceArray<E> buffer;
+    private final AtomicLong top = new AtomicLong();
+    private volatile long bottom;
+
+    /* Cached constants */
+    private final int capacity;
+    private final int mask;
+
+    public WorkStealingDeque() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /* capacity will be rounded up to the next power of 2. */
+    public WorkStealingDeque(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("WorkStealingDeque must have a positive capacity.");
+        }
+        final int size = (capacity == 1)? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.capacity = size;
+        this.mask     = size - 1;
+        this.buffer   = new AtomicReferenceArray<E>(size);
+    }
+
+    /* Returns false if the deque is full. */
+    public boolean push(final E e) {
+        if (e == null) {
+            throw new IllegalArgumentException("Cannot push null to a WorkStealingDeque!");
+        }
+        final long b = bottom;
+        final long t = top.get();
+        if (b - t >= capacity) {
+            return false;
+        }
+        buffer.lazySet((int)(b & mask), e);
+        /* The volatile write publishes the element to the thieves. */
+        bottom = b + 1;
+        return true;
+    }
+
+    /* Returns null if the deque is empty. */
+    public E pop() {
+        final long b = bottom - 1;
+        /* The volatile write followed by the volatile read of top acts as the
+           StoreLoad barrier required by the algorithm. */
+        bottom = b;
+        final long t = top.get();
+        if (t > b) {
+            /* Empty */
+            bottom = b + 1;
+            return null;
+        }
+        final int i = (int)(b & mask);
+        E e = buffer.get(i);
+        if (t == b) {
+            /* Last element: race against the thieves for it. */
+            if (!top.compareAndSet(t, t + 1)) {
+                e = null;
+            } else {
+                buffer.lazySet(i, null);
+            }
+            bottom = b + 1;
+        } else {
+            buffer.lazySet(i, null);
+        }
+        return e;
+    }
+
+    /* Returns null if the deque is empty or if the steal lost a race with another
+       thief or the owner. */
+    public E steal() {
+        final long t = top.get();
+        final long b = bottom;
+        if (t >= b) {
+            return null;
+        }
+        final int i = (int)(t & mask);
+        final E e = buffer.get(i);
+        if (e == null || !top.compareAndSet(t, t + 1)) {
+            return null;
+        }
+        /* The slot is not cleared here since the owner may have already reused it.
+           It will be overwritten by a later push(). */
+        return e;
+    }
+
+    /* This is only an estimate when called by a thread other than the owner. */
+    public int size() {
+        final long size = bottom - top.get();
+        return (size < 0)? 0 : (int) size;
+    }
+
+    public boolean isEmpty() {
+        return bottom <= top.get();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,119 @@
+package eta.runtime.concurrent;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+public class FutureCallbacksTest {
+
+    public interface ListenableFuture<V> extends java.util.concurrent.Future<V> {
+        void addListener(Runnable listener, Executor executor);
+    }
+
+    /* Non-public implementation, like most listenable futures out there. */
+    static class ListenableFutureTask<V> extends FutureTask<V>
+        implements ListenableFuture<V> {
+
+        private Runnable listener;
+        private Executor executor;
+
+        public ListenableFutureTask(Callable<V> callable) {
+            super(callable);
+        }
+
+        @Override
+        public synchronized void addListener(Runnable listener, Executor executor) {
+            if (isDone()) {
+                executor.execute(listener);
+            } else {
+                this.listener = listener;
+                this.executor = executor;
+            }
+        }
+
+        @Override
+        protected synchronized void done() {
+            if (listener != null) {
+                executor.execute(listener);
+            }
+        }
+    }
+
+    private static final Callable<Integer> answer = new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return 42;
+            }
+        };
+
+    @Test
+    public void testPlainFuture() {
+        final FutureTask<Integer> future = new FutureTask<Integer>(answer);
+        assertFalse(FutureCallbacks.register(future, new Runnable() {
+                @Override
+                public void run() {}
+            }));
+    }
+
+    @Test
+    public void testListenableFuture() {
+        final AtomicInteger calls = new AtomicInteger();
+        final Runnable callback = new Runnable() {
+                @Override
+                public void run() {
+                    calls.incrementAndGet();
+                }
+            };
+        final ListenableFutureTask<Integer> future =
+            new ListenableFutureTask<Integer>(answer);
+        assertTrue(FutureCallbacks.register(future, callback));
+        assertEquals(0, calls.get());
+        future.run();
+        assertEquals(1, calls.get());
+        /* Already completed */
+        assertTrue(FutureCallbacks.register(future, callback));
+        assertEquals(2, calls.get());
+    }
+
+    /* CompletableFuture is only available on Java 8+, so it's used reflectively. */
+    @Test
+    public void testCompletionStage() throws Exception {
+        Class<?> clazz = null;
+        try {
+            clazz = Class.forName("java.util.concurrent.CompletableFuture");
+        } catch (ClassNotFoundException e) {}
+        assumeNotNull(clazz);
+        final Future<?> future = (Future<?>) clazz.newInstance();
+        final CountDownLatch woken = new CountDownLatch(1);
+        assertTrue(FutureCallbacks.register(future, new Runnable() {
+                @Override
+                public void run() {
+                    woken.countDown();
+                }
+            }));
+        assertEquals(1, woken.getCount());
+        final Thread completer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        future.getClass().getMethod("complete", Object.class)
+                            .invoke(future, 42);
+                    } catch (ReflectiveOperationException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+        completer.start();
+        assertTrue("The waiter is woken up once the future completes",
+                   woken.await(10, TimeUnit.SECONDS));
+        completer.join();
+        assertEquals(42, future.get());
+    }
+}
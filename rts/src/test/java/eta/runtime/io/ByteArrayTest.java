@@ -2,6 +2,11 @@ package eta.runtime.io;
 
 import org.junit.Test;
 
+import static org.junit.Assert.*;
+
+import eta.runtime.storage.Block;
+import eta.runtime.storage.ManagedHeap;
+
 public class ByteArrayTest {
 
     @Test
@@ -11,4 +16,35 @@ public class ByteArrayTest {
         System.gc();
         IO.checkForGCByteArrays();
     }
+
+    @Test
+    public void testByteArrayReaper() throws InterruptedException {
+        final long before = ByteArrayReaper.getLiveBytes();
+        ByteArray b = ByteArray.create(1000, true);
+        assertEquals(before + 1000, ByteArrayReaper.getLiveBytes());
+        b = null;
+        for (int i = 0; i < 50 && ByteArrayReaper.getLiveBytes() > before; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        assertTrue(ByteArrayReaper.getLiveBytes() <= before);
+    }
+
+    @Test
+    public void testFreeAfterOwnerExits() throws InterruptedException {
+        final long[] address = new long[1];
+        final Thread owner = new Thread() {
+                @Override
+                public void run() {
+                    address[0] = MemoryManager.allocateBuffer(1000, true);
+                }
+            };
+        owner.start();
+        owner.join();
+        final ManagedHeap heap = MemoryManager.getHeap();
+        final Block block = heap.getBlock(address[0]);
+        assertFalse(block.isFree());
+        heap.sendFree(address[0]);
+        assertTrue(block.isFree());
+    }
 }
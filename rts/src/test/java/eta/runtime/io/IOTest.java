@@ -0,0 +1,29 @@
+package eta.runtime.io;
+
+import org.junit.Test;
+import static org.junit.Assert.assertTrue;
+
+import eta.runtime.stg.Capability;
+import eta.runtime.stg.StgContext;
+import eta.runtime.stg.TSO;
+
+public class IOTest {
+
+    @Test
+    public void testDelay() {
+        final Capability cap = Capability.getLocal();
+        final StgContext context = cap.getContext();
+        final TSO tso = new TSO(null);
+        tso.cap = cap;
+        context.reset(cap, tso);
+        /* Short delays last at least as long as requested, but don't get rounded up
+           to a coarse tick. */
+        for (int time = 100; time <= 100000; time *= 10) {
+            final long start = System.nanoTime();
+            IO.delay(context, time);
+            final long elapsed = System.nanoTime() - start;
+            assertTrue(elapsed >= time * 1000L);
+            assertTrue(elapsed < time * 1000L + 50000000L);
+        }
+    }
+}
@@ -2,8 +2,14 @@ package eta.runtime.io;
 
 import static eta.runtime.io.MemoryManager.*;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.Buffer;
+import java.nio.ReadOnlyBufferException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import static java.nio.ByteBuffer.*;
 
 import static java.util.Arrays.*;
@@ -173,6 +179,21 @@ public class MemoryManagerTest {
                    dest,is(src));
     }
 
+    @Test
+    public void testMoveOverlapping() {
+        byte[] bs = new byte[64];
+        for (int i = 0; i < bs.length; i++) bs[i] = (byte) i;
+        long addr = allocateAndSet(bs);
+        move(addr, addr + 3, 40);
+        byte[] expected = copyOf(bs, 64);
+        System.arraycopy(bs, 0, expected, 3, 40);
+        assertArrayEquals(expected, getBytes(addr, 0, 64));
+        move(addr + 10, addr, 41);
+        System.arraycopy(copyOf(expected, 64), 10, expected, 0, 41);
+        assertArrayEquals(expected, getBytes(addr, 0, 64));
+        free(addr);
+    }
+
     @Test
     public void testCompare() {
         byte[] ones = repeat(16,1);
@@ -214,6 +235,43 @@ public class MemoryManagerTest {
         
     }
 
+    @Test
+    public void testWordAtATime() {
+        ByteOrder[] orders = {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN};
+        for (int n = 0; n < 40; n++) {
+            for (int offset = 0; offset < 8; offset++) {
+                ByteOrder order = orders[rnd.nextInt(2)];
+                byte[] bytes = new byte[offset + n];
+                rnd.nextBytes(bytes);
+                byte[] other = copyOf(bytes, bytes.length);
+                int diff = (n == 0)? -1 : offset + rnd.nextInt(n);
+                if (diff >= 0) other[diff] = (byte) (other[diff] ^ 0x80);
+                ByteBuffer b1 = wrap(bytes, offset, n).slice().order(order);
+                ByteBuffer b2 = wrap(other, offset, n).slice().order(order);
+                int expected = (diff < 0)? 0 : (bytes[diff] & 0xFF) - (other[diff] & 0xFF);
+                assertEquals(expected, compare(b1.duplicate().order(order),
+                                               b2.duplicate().order(order), n));
+                int found = (n == 0)? -1 : rnd.nextInt(n);
+                byte c = (found < 0)? 0 : bytes[offset + found];
+                int index = -1;
+                for (int i = 0; i < n; i++) {
+                    if (bytes[offset + i] == c) { index = i; break; }
+                }
+                ByteBuffer b = b1.duplicate().order(order);
+                assertEquals(index, chrIndex(b, c, n));
+                assertEquals((index < 0)? n : index + 1, b.position());
+            }
+        }
+        long addr = allocateBuffer(64, true);
+        set(addr, (byte) 0xFF, 64);
+        set(addr + 3, (byte) 7, 29);
+        byte[] result = getBytes(addr, 0, 64);
+        for (int i = 0; i < 64; i++) {
+            assertEquals((i >= 3 && i < 32)? 7 : -1, result[i]);
+        }
+        free(addr);
+    }
+
     @Test
     public void testChr() {
         ByteBuffer b = buffer(new byte[16]);
@@ -241,6 +299,52 @@ public class MemoryManagerTest {
                    "it returns its buffer index", result,is(5));
     }
 
+    @Test
+    public void testGetPutPrimitives() {
+        for (boolean direct: new boolean[] { true, false }) {
+            long addr = allocateBuffer(64, direct);
+            putLong(addr, 0x0102030405060708L);
+            putInt(addr + 9, 0x0a0b0c0d);
+            putShort(addr + 14, (short) 0x0e0f);
+            putChar(addr + 17, '\u1112');
+            put(addr + 19, (byte) -1);
+            putDouble(addr + 20, Math.PI);
+            putFloat(addr + 29, (float) Math.E);
+            ByteBuffer b = getBoundedBuffer(addr).slice();
+            assertThat("Multi-byte values are stored in big-endian order",
+                       b.get(0), is((byte) 1));
+            assertThat(b.get(7), is((byte) 8));
+            assertThat(b.get(9), is((byte) 0x0a));
+            assertThat(b.getInt(9), is(0x0a0b0c0d));
+            assertThat(getLong(addr), is(0x0102030405060708L));
+            assertThat(getInt(addr + 9), is(0x0a0b0c0d));
+            assertThat(getShort(addr + 14), is((short) 0x0e0f));
+            assertThat(getChar(addr + 17), is('\u1112'));
+            assertThat(get(addr + 19), is((byte) -1));
+            assertThat(getDouble(addr + 20), is(Math.PI));
+            assertThat(b.getDouble(20), is(Math.PI));
+            assertThat(getFloat(addr + 29), is((float) Math.E));
+            assertThat(getInt(addr + 1), is(0x02030405));
+            assertThat("Only direct memory has a native address",
+                       getNativeAddress(addr) != 0, is(direct));
+        }
+    }
+
+    @Test
+    public void testGetPastBlockEnd() {
+        final int size = 4194305;
+        long addr = allocateBuffer(size, true);
+        putLong(addr + size - 8, 0x0102030405060708L);
+        assertThat(getLong(addr + size - 8), is(0x0102030405060708L));
+        try {
+            getLong(addr + size - 4);
+            fail("Reading past the end of a block should fail");
+        } catch (IndexOutOfBoundsException e) {
+        } finally {
+            free(addr);
+        }
+    }
+
     @Test
     public void testNullAddress() {
         long addr = allocateBuffer(0,true);
@@ -255,6 +359,41 @@ public class MemoryManagerTest {
         allocateBuffer(10,true);
     }
     
+    @Test
+    public void testMapFile() throws IOException {
+        File file = File.createTempFile("eta-map", null);
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+        out.close();
+        long address = mapFile(file.getPath(), 2, 6, false);
+        assertEquals(3, get(address));
+        assertEquals(0x05060708, getInt(address + 2));
+        free(address);
+        address = mapFile(file.getPath(), 0, 8, true);
+        putInt(address + 4, 42);
+        free(address);
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        in.seek(4);
+        assertEquals(42, in.readInt());
+        in.close();
+    }
+
+    @Test(expected = ReadOnlyBufferException.class)
+    public void testMapFileReadOnly() throws IOException {
+        File file = File.createTempFile("eta-map", null);
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[8]);
+        out.close();
+        long address = mapFile(file.getPath(), 0, 8, false);
+        try {
+            put(address, (byte) 1);
+        } finally {
+            free(address);
+        }
+    }
+
     // Utils
 
     private void debug(ByteBuffer b) {
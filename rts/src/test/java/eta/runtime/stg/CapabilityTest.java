@@ -0,0 +1,36 @@
+package eta.runtime.stg;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import eta.runtime.concurrent.Concurrent;
+
+public class CapabilityTest {
+
+    @Test(timeout = 10000)
+    public void testRetireExitedBoundCapability() throws InterruptedException {
+        final TSO tso = new TSO(null);
+        final Capability[] bound = new Capability[1];
+        final Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    bound[0] = Capability.getLocal();
+                    bound[0].pushToLocalRunQueue(tso);
+                }
+            };
+        thread.start();
+        thread.join();
+        assertNotNull(bound[0]);
+        /* The work of the exited capability is handed over to the global run queue
+           instead of being stolen from it. */
+        final Capability cap = Capability.getLocal();
+        assertNull(cap.tryStealCapabilities());
+        TSO next;
+        while ((next = Concurrent.stealFromGlobalRunQueue()) != tso) {
+            assertNotNull(next);
+        }
+        assertEquals(0, bound[0].localRunQueueSize());
+    }
+}
@@ -0,0 +1,101 @@
+package eta.runtime.stm;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import eta.runtime.Runtime;
+import eta.runtime.stg.TSO;
+
+public class ContentionManagerTest {
+
+    @Test
+    public void testContentionManagerCreate() {
+        assertTrue(ContentionManager.create(null) instanceof ContentionManager.Backoff);
+        assertTrue(ContentionManager.create("karma") instanceof ContentionManager.Karma);
+        assertTrue(ContentionManager.create("none") instanceof ContentionManager.Immediate);
+        assertTrue(ContentionManager.create("eta.runtime.stm.ContentionManager$Immediate")
+                   instanceof ContentionManager.Immediate);
+        assertTrue(ContentionManager.create("java.lang.String")
+                   instanceof ContentionManager.Backoff);
+    }
+
+    @Test
+    public void testContentionManagerBackoff() {
+        for (int attempts = 0; attempts < 40; attempts++) {
+            long nanos = ContentionManager.Backoff.getBackoffNanos(attempts);
+            assertTrue(nanos >= 1);
+            assertTrue(nanos <= ContentionManager.Backoff.MAX_BACKOFF_NANOS);
+            if (attempts <= 1) {
+                assertTrue(nanos <= ContentionManager.Backoff.MIN_BACKOFF_NANOS);
+            }
+        }
+    }
+
+    @Test
+    public void testContentionManagerKarma() {
+        ContentionManager.Karma karma = new ContentionManager.Karma();
+        TSO t1 = new TSO(null);
+        TSO t2 = new TSO(null);
+        karma.onAbort(null, t1, 3);
+        assertSame(t1, karma.getLeader());
+        karma.onAbort(null, t2, 2);
+        assertSame(t1, karma.getLeader());
+        karma.onAbort(null, t2, 4);
+        assertSame(t2, karma.getLeader());
+        karma.onFinish(t1, 3);
+        assertSame(t2, karma.getLeader());
+        karma.onFinish(t2, 4);
+        assertNull(karma.getLeader());
+    }
+
+    @Test
+    public void testContentionManagerAbortCount() {
+        TVar a = new TVar(null);
+        TVar b = new TVar(null);
+        TransactionRecord t1 = TransactionRecord.start(null);
+        t1.read(a);
+        t1.write(b, a);
+        TransactionRecord t2 = TransactionRecord.start(null);
+        t2.write(a, b);
+        assertTrue(t2.commit(null));
+        assertFalse(t1.commit(null));
+        assertSame(a, t1.conflict);
+        assertEquals(1, a.getAborts());
+        assertEquals(0, b.getAborts());
+    }
+
+    @Test
+    public void testContentionManagerIrrevocable() throws InterruptedException {
+        final int irrevocableAfter = Runtime.getSTMIrrevocableAfter();
+        Runtime.setSTMIrrevocableAfter(1);
+        try {
+            final TSO t1 = new TSO(null);
+            final TSO t2 = new TSO(null);
+            final CountDownLatch committed = new CountDownLatch(1);
+            ContentionManager.becomeIrrevocable(null, t1);
+            assertSame(t1, ContentionManager.getIrrevocable());
+            Thread other = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        ContentionManager.enterCommit(null, t2);
+                        committed.countDown();
+                        ContentionManager.exitCommit();
+                    }
+                });
+            other.start();
+            /* The irrevocable transaction can commit, but the other one has to wait. */
+            ContentionManager.enterCommit(null, t1);
+            ContentionManager.exitCommit();
+            assertFalse(committed.await(50, TimeUnit.MILLISECONDS));
+            ContentionManager.leaveIrrevocable(t1);
+            assertTrue(committed.await(5, TimeUnit.SECONDS));
+            other.join();
+            assertNull(ContentionManager.getIrrevocable());
+        } finally {
+            Runtime.setSTMIrrevocableAfter(irrevocableAfter);
+        }
+    }
+}
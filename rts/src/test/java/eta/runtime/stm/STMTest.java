@@ -0,0 +1,92 @@
+package eta.runtime.stm;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import eta.runtime.Runtime;
+import eta.runtime.concurrent.Concurrent;
+import eta.runtime.stg.Capability;
+import eta.runtime.stg.Closure;
+import eta.runtime.stg.StgContext;
+import eta.runtime.stg.TSO;
+
+public class STMTest {
+
+    /* A future that never completes and counts how often it's polled by the idle
+       loops of blocked threads. */
+    static class PolledFuture extends FutureTask<Object> {
+        final AtomicInteger polls = new AtomicInteger();
+
+        public PolledFuture() {
+            super(new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        return null;
+                    }
+                });
+        }
+
+        @Override
+        public boolean isDone() {
+            polls.incrementAndGet();
+            return false;
+        }
+    }
+
+    /* Raising BlockedIndefinitelyOnSTM needs the base library, so this checks that a
+       thread blocked in retry keeps running the checks of a blocked thread, among
+       them the deadlock detection, instead of only running them once. */
+    @Test(timeout = 10000)
+    public void testRetryRunsBlockedChecks() throws InterruptedException {
+        final int checkTime = Runtime.getSTMRetryCheckTime();
+        Runtime.setSTMRetryCheckTime(10);
+        /* A live worker keeps the waiter from being considered deadlocked. */
+        final Capability worker = new Capability(null, true);
+        worker.addWorker();
+        final PolledFuture future = new PolledFuture();
+        Concurrent.futureMap.put(future, new TSO(null));
+        final TVar tvar = new TVar(null);
+        final AtomicReference<Object> result = new AtomicReference<Object>();
+        final Closure code = new Closure() {
+                @Override
+                public Closure enter(StgContext context) {
+                    return null;
+                }
+
+                @Override
+                public Closure applyV(StgContext context) {
+                    final Closure value = STM.readTVar(context, tvar);
+                    return (value == null)? STM.retry(context) : value;
+                }
+            };
+        final Thread waiter = new Thread() {
+                @Override
+                public void run() {
+                    final Capability cap = Capability.getLocal();
+                    final TSO tso = new TSO(null);
+                    tso.cap = cap;
+                    cap.getContext().reset(cap, tso);
+                    result.set(STM.atomically(cap.getContext(), code));
+                }
+            };
+        try {
+            waiter.start();
+            while (future.polls.get() < 5) {
+                Thread.sleep(10);
+            }
+            final TransactionRecord trec = TransactionRecord.start(null);
+            trec.write(tvar, tvar);
+            assertTrue(trec.commit(Capability.getLocal()));
+            waiter.join();
+            assertSame(tvar, result.get());
+        } finally {
+            Concurrent.futureMap.remove(future);
+            worker.removeWorker();
+            Runtime.setSTMRetryCheckTime(checkTime);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package eta.runtime.stm;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TransactionLogTest {
+
+    private static TVar[] newTVars(int n) {
+        TVar[] tvars = new TVar[n];
+        for (int i = 0; i < n; i++) {
+            tvars[i] = new TVar(null);
+        }
+        return tvars;
+    }
+
+    private static void checkLog(TransactionLog log, TVar[] tvars, int n) {
+        assertEquals(n, log.size());
+        for (int i = 0; i < n; i++) {
+            assertSame(tvars[i], log.get(i).tvar);
+            assertSame(log.get(i), log.get(tvars[i]));
+        }
+        for (int i = n; i < tvars.length; i++) {
+            assertNull(log.get(tvars[i]));
+        }
+    }
+
+    @Test
+    public void testTransactionLogLinear() {
+        TVar[] tvars = newTVars(TransactionLog.LINEAR_THRESHOLD + 1);
+        TransactionLog log = new TransactionLog();
+        for (int i = 0; i < TransactionLog.LINEAR_THRESHOLD; i++) {
+            log.add(new TransactionEntry(tvars[i], null, null, i));
+        }
+        checkLog(log, tvars, TransactionLog.LINEAR_THRESHOLD);
+    }
+
+    @Test
+    public void testTransactionLogHashed() {
+        TVar[] tvars = newTVars(1000);
+        TransactionLog log = new TransactionLog();
+        for (int i = 0; i < 500; i++) {
+            log.add(new TransactionEntry(tvars[i], null, null, i));
+        }
+        checkLog(log, tvars, 500);
+        int i = 0;
+        for (TransactionEntry e: log) {
+            assertEquals(i++, e.version);
+        }
+        assertEquals(500, i);
+    }
+
+    @Test
+    public void testTransactionLogClear() {
+        TVar[] tvars = newTVars(20);
+        TransactionLog log = new TransactionLog();
+        TransactionEntryPool pool = new TransactionEntryPool();
+        for (int i = 0; i < 20; i++) {
+            log.add(pool.take(tvars[i], tvars[i], null, i));
+        }
+        TransactionEntry first = log.get(0);
+        log.clear(pool);
+        assertTrue(log.isEmpty());
+        assertNull(log.get(tvars[0]));
+        assertEquals(20, pool.size());
+        assertNull(first.tvar);
+        assertNull(first.expectedValue);
+        /* The log can be reused, starting out linear again. */
+        log.add(pool.take(tvars[5], null, null, 5));
+        checkLog(log, new TVar[] { tvars[5], tvars[0] }, 1);
+        assertEquals(19, pool.size());
+    }
+
+    @Test
+    public void testTransactionEntryPoolBounded() {
+        TransactionEntryPool pool = new TransactionEntryPool();
+        for (int i = 0; i < TransactionEntryPool.MAX_ENTRIES + 10; i++) {
+            pool.offer(new TransactionEntry(null, null, null, 0));
+        }
+        assertEquals(TransactionEntryPool.MAX_ENTRIES, pool.size());
+    }
+
+    @Test
+    public void testTrecReusesPooledEntries() {
+        TransactionEntryPool pool = new TransactionEntryPool();
+        TVar a = new TVar(null);
+        TransactionRecord trec = TransactionRecord.start(pool, null);
+        trec.write(a, a);
+        TransactionEntry entry = trec.entries.get(a);
+        assertTrue(trec.commit(null));
+        trec.release();
+        assertSame(a, a.currentValue());
+        TransactionRecord next = TransactionRecord.start(pool, null);
+        TransactionRecord nested = TransactionRecord.start(next);
+        assertSame(a, nested.read(a));
+        assertSame(entry, nested.entries.get(a));
+        assertEquals(0, pool.size());
+    }
+}
@@ -0,0 +1,274 @@
+package eta.runtime.stm;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import eta.runtime.stg.Capability;
+import eta.runtime.stg.Closure;
+import eta.runtime.stg.TSO;
+import eta.runtime.exception.RestartException;
+
+public class TransactionRecordTest {
+
+    /* TVars are used as the values since any closure will do. */
+    Closure x, y;
+    TVar a, b;
+
+    @Before
+    public void init() {
+        x = new TVar(null);
+        y = new TVar(null);
+        a = new TVar(x);
+        b = new TVar(x);
+    }
+
+    @Test
+    public void testTrecCommit() {
+        TransactionRecord trec = TransactionRecord.start(null);
+        assertSame(x, trec.read(a));
+        trec.write(a, y);
+        assertSame(y, trec.read(a));
+        assertSame(x, a.currentValue());
+        long version = TVar.getVersion(a.stamp);
+        assertTrue(trec.commit(null));
+        assertSame(y, a.currentValue());
+        assertFalse(TVar.isLocked(a.stamp));
+        assertTrue(TVar.getVersion(a.stamp) > version);
+    }
+
+    @Test
+    public void testTrecReadOnlyCommitLeavesVersion() {
+        long stamp = a.stamp;
+        TransactionRecord trec = TransactionRecord.start(null);
+        trec.read(a);
+        assertTrue(trec.commit(null));
+        assertEquals(stamp, a.stamp);
+    }
+
+    @Test
+    public void testTrecReadOnlyFastPath() {
+        TransactionRecord t1 = TransactionRecord.start(null);
+        t1.read(a);
+        t1.write(b, x);
+        assertTrue(t1.readOnly);
+        TransactionRecord t2 = TransactionRecord.start(null);
+        t2.write(b, y);
+        assertTrue(t2.commit(null));
+        /* Nothing was written, so t1 commits as of the snapshot it read. */
+        assertTrue(t1.commit(null));
+        assertNull(t1.invariantsToCheck);
+        assertNull(t1.getInvariantsToCheck(null));
+    }
+
+    @Test
+    public void testTrecReadOnlyCondemned() {
+        TransactionRecord t1 = TransactionRecord.start(null);
+        t1.read(a);
+        TransactionRecord t2 = TransactionRecord.start(null);
+        t2.write(a, y);
+        t2.write(b, y);
+        assertTrue(t2.commit(null));
+        try {
+            t1.read(b);
+            fail("An inconsistent read should restart the transaction");
+        } catch (RestartException e) {}
+        assertTrue(t1.readOnly);
+        assertFalse(t1.commit(null));
+    }
+
+    @Test
+    public void testTrecNestedWriteIsNotReadOnly() {
+        TransactionRecord outer = TransactionRecord.start(null);
+        TransactionRecord inner = TransactionRecord.start(outer);
+        inner.write(a, y);
+        assertTrue(inner.commitNested());
+        assertFalse(outer.readOnly);
+        assertTrue(outer.commit(null));
+        assertSame(y, a.currentValue());
+    }
+
+    @Test
+    public void testTrecConflict() {
+        TransactionRecord t1 = TransactionRecord.start(null);
+        t1.read(a);
+        t1.write(b, y);
+        TransactionRecord t2 = TransactionRecord.start(null);
+        t2.write(a, y);
+        assertTrue(t2.commit(null));
+        assertFalse(t1.commit(null));
+        assertSame(x, b.currentValue());
+        assertFalse(TVar.isLocked(b.stamp));
+    }
+
+    @Test
+    public void testTrecExtendSnapshot() {
+        TransactionRecord t1 = TransactionRecord.start(null);
+        t1.read(a);
+        TransactionRecord t2 = TransactionRecord.start(null);
+        t2.write(b, y);
+        assertTrue(t2.commit(null));
+        /* b is newer than t1's snapshot but a is unchanged, so t1 is consistent. */
+        assertSame(y, t1.read(b));
+        t1.write(a, y);
+        assertTrue(t1.commit(null));
+        assertSame(y, a.currentValue());
+    }
+
+    @Test
+    public void testTrecInconsistentSnapshot() {
+        TransactionRecord t1 = TransactionRecord.start(null);
+        t1.read(a);
+        TransactionRecord t2 = TransactionRecord.start(null);
+        t2.write(a, y);
+        t2.write(b, y);
+        assertTrue(t2.commit(null));
+        try {
+            t1.read(b);
+            fail("An inconsistent read should restart the transaction");
+        } catch (RestartException e) {}
+        assertEquals(TransactionRecord.State.TREC_CONDEMNED, t1.state);
+        assertFalse(t1.commit(null));
+    }
+
+    @Test
+    public void testTrecInconsistentNestedRead() {
+        TransactionRecord outer = TransactionRecord.start(null);
+        assertSame(x, outer.read(a));
+        TransactionRecord inner = TransactionRecord.start(outer);
+        TransactionRecord t2 = TransactionRecord.start(null);
+        t2.write(a, y);
+        t2.write(b, y);
+        assertTrue(t2.commit(null));
+        /* The new value of b must never be seen alongside the old value of a. */
+        Closure seen = null;
+        try {
+            seen = inner.read(b);
+            fail("An inconsistent read should restart the transaction");
+        } catch (RestartException e) {}
+        assertNull(seen);
+        assertSame(a, inner.conflict);
+        assertEquals(1, a.getAborts());
+    }
+
+    @Test
+    public void testTrecNested() {
+        TransactionRecord outer = TransactionRecord.start(null);
+        outer.read(a);
+        TransactionRecord inner = TransactionRecord.start(outer);
+        assertSame(x, inner.read(a));
+        inner.write(a, y);
+        inner.write(b, y);
+        assertTrue(inner.commitNested());
+        assertSame(y, outer.read(a));
+        assertSame(x, a.currentValue());
+        assertTrue(outer.commit(null));
+        assertSame(y, a.currentValue());
+        assertSame(y, b.currentValue());
+    }
+
+    @Test
+    public void testTrecNestedAbortKeepsReads() {
+        TransactionRecord outer = TransactionRecord.start(null);
+        TransactionRecord inner = TransactionRecord.start(outer);
+        inner.write(a, y);
+        inner.abort();
+        assertSame(x, outer.read(a));
+        TransactionRecord t2 = TransactionRecord.start(null);
+        t2.write(a, y);
+        assertTrue(t2.commit(null));
+        /* The read made by the aborted nested transaction is still validated. */
+        outer.write(b, y);
+        assertFalse(outer.commit(null));
+    }
+
+    @Test
+    public void testTrecWaitWakeup() {
+        Capability cap = Capability.getLocal();
+        TSO tso = new TSO(null);
+        tso.cap = cap;
+        TransactionRecord trec = TransactionRecord.start(null);
+        trec.read(a);
+        trec.read(b);
+        assertTrue(trec.wait(tso));
+        assertEquals(TSO.WhyBlocked.BlockedOnSTM, tso.whyBlocked);
+        assertTrue(a.watchQueue.contains(tso));
+        assertTrue(trec.reWait(tso));
+        TransactionRecord t2 = TransactionRecord.start(null);
+        t2.write(b, y);
+        assertTrue(t2.commit(cap));
+        assertSame(STM.awake, tso.blockInfo);
+        assertFalse(trec.reWait(tso));
+        trec.removeWatchQueueEntries();
+        assertTrue(a.watchQueue.isEmpty());
+        assertTrue(b.watchQueue.isEmpty());
+    }
+
+    @Test
+    public void testTrecWaitInvalid() {
+        TSO tso = new TSO(null);
+        TransactionRecord trec = TransactionRecord.start(null);
+        trec.read(a);
+        TransactionRecord t2 = TransactionRecord.start(null);
+        t2.write(a, y);
+        assertTrue(t2.commit(null));
+        assertFalse(trec.wait(tso));
+        assertTrue(a.watchQueue.isEmpty());
+    }
+
+    /* Writers always set a and b to the same value in one transaction, so no committed
+       transaction may see them differ, whether it's read-only or also writes. */
+    @Test(timeout = 60000)
+    public void testTrecConcurrentSnapshot() throws InterruptedException {
+        final Closure[] values = new Closure[16];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new TVar(null);
+        }
+        final TVar c = new TVar(x);
+        final long deadline = System.nanoTime() + 2000000000L;
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final AtomicInteger committed = new AtomicInteger();
+        final Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final boolean writer = t % 2 == 0;
+            final boolean update = t % 4 == 3;
+            threads[t] = new Thread() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; System.nanoTime() < deadline && failure.get() == null;
+                             i++) {
+                            final TransactionRecord trec = TransactionRecord.start(null);
+                            try {
+                                if (writer) {
+                                    final Closure value = values[i % values.length];
+                                    trec.write(a, value);
+                                    trec.write(b, value);
+                                    trec.commit(null);
+                                } else {
+                                    final Closure seenA = trec.read(a);
+                                    final Closure seenB = trec.read(b);
+                                    if (update) {
+                                        trec.write(c, seenA);
+                                    }
+                                    if (trec.commit(null)) {
+                                        committed.incrementAndGet();
+                                        if (seenA != seenB) {
+                                            failure.compareAndSet
+                                                (null, "Committed with a != b" +
+                                                 (update? " while updating" : ""));
+                                        }
+                                    }
+                                }
+                            } catch (RestartException e) {}
+                        }
+                    }
+                };
+        }
+        for (Thread t: threads) t.start();
+        for (Thread t: threads) t.join();
+        assertNull(failure.get(), failure.get());
+        assertTrue(committed.get() > 0);
+    }
+}
@@ -41,6 +41,34 @@ public class AllocationVectorTest {
                          ,new byte[] { (byte) 0xFB, 0x2, 0x0, 0x40 });
     }
 
+    @Test
+    public void testAllocVecAllocatedSize() {
+        av.allocate(0, 2);
+        av.allocate(2, 3);
+        assertEquals(2, av.allocatedSize(0));
+        assertEquals(3, av.allocatedSize(2));
+    }
+
+    @Test
+    public void testAllocVecResizeGrow() {
+        av.allocate(0, 2);
+        av.allocate(5, 2);
+        assertEquals(true, av.resize(0, 2, 5));
+        assertArrayEquals(av.getBytes()
+                         ,new byte[] { (byte) 0xFF, 0x2E, 0x0, 0x40 });
+        assertEquals(false, av.resize(0, 5, 6));
+        assertEquals(5, av.allocatedSize(0));
+    }
+
+    @Test
+    public void testAllocVecResizeShrink() {
+        av.allocate(0, 4);
+        assertEquals(true, av.resize(0, 4, 2));
+        assertArrayEquals(av.getBytes()
+                         ,new byte[] { 0x0B, 0x0, 0x0, 0x40 });
+        assertEquals(2, av.allocatedSize(0));
+    }
+
     @Test
     public void testAllocVecFreeStart() {
         av.allocate(0, 4);
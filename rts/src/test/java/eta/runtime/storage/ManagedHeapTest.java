@@ -1,12 +1,17 @@
 package eta.runtime.storage;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
+import eta.runtime.io.MemoryManager;
 import eta.runtime.stg.Capability;
 
 public class ManagedHeapTest {
@@ -45,6 +50,13 @@ public class ManagedHeapTest {
         cap.cleanupLocalHeap();
     }
 
+    /* The local heap refers to blocks in this heap, so it must not be used with the
+       global heap afterwards. */
+    @After
+    public void cleanup() {
+        cap.cleanupLocalHeap();
+    }
+
     @Test
     public void testManagedHeapDirectVsHeap() {
         long address1 = heap.allocateBuffer(7, false, cap);
@@ -115,6 +127,111 @@ public class ManagedHeapTest {
         }
     }
 
+    @Test
+    public void testManagedHeapBlockLookup() {
+        heap = new ManagedHeap(4, blockSize, miniBlockSize);
+        long[] addresses = new long[10];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = heap.allocateBuffer(blockSize, i % 2 == 0, cap);
+        }
+        assertEquals(3, heap.getStatistics().getNurseryStats().size());
+        for (int i = 0; i < addresses.length; i++) {
+            long address = addresses[i];
+            assertEquals(address, heap.getBlock(address + blockSize - 1).getAddress());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testManagedHeapBlockLookupOutOfBounds() {
+        heap = new ManagedHeap(4, blockSize, miniBlockSize);
+        heap.getBlock(5 * blockSize);
+    }
+
+    @Test
+    public void testManagedHeapLargeObjects() {
+        heap = new ManagedHeap(nurserySize, blockSize, miniBlockSize, 0, 4 * blockSize);
+        int size = 5 * blockSize + 1;
+        long address1 = heap.allocateBuffer(size, true, cap);
+        long address2 = heap.allocateBuffer(size, false, cap);
+        assertTrue(address1 >= ManagedHeap.LARGE_OBJECT_BASE);
+        assertTrue(address2 > address1 + size);
+        assertEquals(0, heap.getStatistics().getBlocksAllocated());
+        Block block = heap.getBlock(address1 + size - 1);
+        assertEquals(address1, block.getAddress());
+        assertEquals(size, block.allocatedSize(address1));
+        block.put(address1 + size - 1, (byte) 42);
+        assertEquals(42, heap.getBlock(address1).get(address1 + size - 1));
+        HeapStats stats = heap.getStatistics();
+        assertEquals(2, stats.getLargeObjects());
+        assertEquals(2 * size, stats.getLargeBytesLive());
+        heap.free(address1);
+        heap.free(address2);
+        stats = heap.getStatistics();
+        assertEquals(0, stats.getLargeObjects());
+        assertEquals(2 * size, stats.getLargeBytesFreed());
+        /* Allocations up to the threshold still come from the nurseries. */
+        long address3 = heap.allocateBuffer(4 * blockSize, true, cap);
+        assertTrue(address3 < ManagedHeap.LARGE_OBJECT_BASE);
+    }
+
+    @Test
+    public void testManagedHeapLargeObjectReuse() {
+        heap = new ManagedHeap(nurserySize, blockSize, miniBlockSize, 0, 4 * blockSize);
+        int size = 5 * blockSize + 1;
+        long address1 = heap.allocateBuffer(size, true, cap);
+        Block block1 = heap.getBlock(address1);
+        block1.put(address1 + 7, (byte) 42);
+        heap.free(address1);
+        /* The freed buffer is reused by an allocation of a similar size. */
+        int capacity = LargeBufferPool.getCapacity(size);
+        assertTrue(capacity >= size && capacity - size < size / LargeBufferPool.CLASS_STEPS);
+        long address2 = heap.allocateBuffer(capacity, true, cap);
+        assertTrue(address2 > address1);
+        assertEquals(42, heap.getBlock(address2).get(address2 + 7));
+        assertEquals(capacity, heap.getBlock(address2).allocatedSize(address2));
+        /* Stale references to the freed object fail. */
+        try {
+            block1.get(address1 + 7);
+            fail("Accessing a freed large object should fail");
+        } catch (RuntimeException e) {}
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testManagedHeapLargeObjectOutOfBounds() {
+        heap = new ManagedHeap(nurserySize, blockSize, miniBlockSize, 0, 4 * blockSize);
+        long address = heap.allocateBuffer(5 * blockSize, true, cap);
+        heap.getBlock(address + 5 * blockSize);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testManagedHeapLargeObjectDoubleFree() {
+        heap = new ManagedHeap(nurserySize, blockSize, miniBlockSize, 0, 4 * blockSize);
+        long address = heap.allocateBuffer(5 * blockSize, true, cap);
+        heap.free(address);
+        heap.free(address);
+    }
+
+    @Test
+    public void testManagedHeapResize() {
+        long address1 = heap.allocateBuffer(miniBlockSize, true, cap);
+        assertTrue(heap.resizeBuffer(address1, 3 * miniBlockSize + 1));
+        assertEquals(4 * miniBlockSize, heap.getBlock(address1).allocatedSize(address1));
+        long address2 = heap.allocateBuffer(miniBlockSize, true, cap);
+        assertEquals(address1 + 4 * miniBlockSize, address2);
+        assertTrue(!heap.resizeBuffer(address1, 5 * miniBlockSize));
+        assertTrue(heap.resizeBuffer(address1, 2 * miniBlockSize));
+        assertEquals(address1 + 2 * miniBlockSize,
+                     heap.allocateBuffer(2 * miniBlockSize, true, cap));
+    }
+
+    @Test
+    public void testManagedHeapResizeSlot() {
+        heap = new ManagedHeap(nurserySize, blockSize, miniBlockSize, 32);
+        long address = heap.allocateBuffer(5, true, cap);
+        assertTrue(heap.resizeBuffer(address, 8));
+        assertTrue(!heap.resizeBuffer(address, 9));
+    }
+
     @Test
     public void testManagedHeapEmptyBuffer() {
         assertEquals(blockSize, heap.allocateBuffer(0, false, cap));
@@ -130,4 +247,186 @@ public class ManagedHeapTest {
                          new int[] {64}
                      });
     }
+
+    @Test
+    public void testManagedHeapBlockReuse() {
+        long address1 = heap.allocateBuffer(blockSize, true, cap);
+        long address2 = heap.allocateBuffer(blockSize, true, cap);
+        long address3 = heap.allocateBuffer(blockSize, false, cap);
+        /* The most recently allocated block stays active when it's freed. */
+        heap.free(address2);
+        assertEquals(0, heap.getStatistics().getBlocksReleased());
+        heap.free(address1);
+        HeapStats stats = heap.getStatistics();
+        assertEquals(3, stats.getBlocksAllocated());
+        assertEquals(1, stats.getBlocksReleased());
+        assertEquals(1, stats.getBlocksPooled());
+        /* Heap blocks are pooled separately from direct blocks. */
+        long address4 = heap.allocateBuffer(blockSize, false, cap);
+        assertEquals(4, heap.getStatistics().getBlocksAllocated());
+        /* The active block is allocated from before the pool is used. */
+        assertEquals(address2, heap.allocateBuffer(blockSize, true, cap));
+        long address5 = heap.allocateBuffer(blockSize, true, cap);
+        assertEquals(address1, address5);
+        stats = heap.getStatistics();
+        assertEquals(4, stats.getBlocksAllocated());
+        assertEquals(1, stats.getBlocksReused());
+        assertEquals(0, stats.getBlocksPooled());
+    }
+
+    @Test
+    public void testManagedHeapSuperBlockReuse() {
+        long address1 = heap.allocateBuffer(blockSize * 2 + 1, false, cap);
+        long address2 = heap.allocateBuffer(blockSize * 2 + 1, false, cap);
+        heap.free(address1);
+        assertEquals(3, heap.getStatistics().getBlocksPooled());
+        /* A super block is only reused for an allocation of the same number of blocks. */
+        heap.allocateBuffer(blockSize * 4, false, cap);
+        assertEquals(3, heap.getStatistics().getBlocksPooled());
+        long address3 = heap.allocateBuffer(blockSize * 3, false, cap);
+        assertEquals(address1, address3);
+        assertEquals(cap, heap.getBlock(address3 + 2 * blockSize).getOwner());
+        heap.free(address3 + 2 * blockSize - 1);
+    }
+
+    @Test(timeout = 10000)
+    public void testManagedHeapFreeAfterOwnerExit() throws InterruptedException {
+        /* Free messages are processed with the global heap. */
+        final ManagedHeap global = MemoryManager.getHeap();
+        final long[] addresses = new long[1];
+        final CountDownLatch removed = new CountDownLatch(1);
+        final CountDownLatch freed = new CountDownLatch(1);
+        Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    Capability owner = new Capability(this, true);
+                    Capability.setLocal(owner);
+                    owner.addWorker();
+                    addresses[0] = global.allocateBuffer(blockSize * 5 + 1, false, owner);
+                    global.allocateBuffer(blockSize * 5 + 1, false, owner);
+                    owner.removeWorker();
+                    removed.countDown();
+                    try {
+                        freed.await();
+                    } catch (InterruptedException e) {}
+                }
+            };
+        thread.start();
+        try {
+            removed.await();
+            long pooled = global.getStatistics().getBlocksPooled();
+            /* The thread is still running, but the worker is gone, so the sender
+               handles the free and the blocks go to the global pool instead of the
+               pool of the worker. */
+            global.sendFree(addresses[0]);
+            assertEquals(pooled + 6, global.getStatistics().getBlocksPooled());
+            Capability other = new Capability(null, false);
+            assertEquals(addresses[0], global.allocateBuffer(blockSize * 6, false, other));
+        } finally {
+            freed.countDown();
+            thread.join();
+        }
+    }
+
+    @Test
+    public void testManagedHeapGlobalBlockPool() {
+        int n = BlockPool.MAX_CLASS_BLOCKS + 2;
+        long[] addresses = new long[n + 1];
+        for (int i = 0; i <= n; i++) {
+            addresses[i] = heap.allocateBuffer(blockSize, false, cap);
+        }
+        for (int i = 0; i < n; i++) {
+            heap.free(addresses[i]);
+        }
+        assertEquals(n, heap.getStatistics().getBlocksPooled());
+        /* The blocks that overflowed the local pool are reused by other Capabilities. */
+        cap.cleanupLocalHeap();
+        for (int i = 0; i < n - BlockPool.MAX_CLASS_BLOCKS; i++) {
+            heap.allocateBuffer(blockSize, false, cap);
+        }
+        assertEquals(n + 1, heap.getStatistics().getBlocksAllocated());
+        heap.allocateBuffer(blockSize, false, cap);
+        assertEquals(n + 2, heap.getStatistics().getBlocksAllocated());
+    }
+
+    @Test
+    public void testManagedHeapSlabsUpToMiniBlock() {
+        heap = new ManagedHeap(nurserySize, blockSize, miniBlockSize, miniBlockSize);
+        long address1 = heap.allocateBuffer(33, true, cap);
+        long address2 = heap.allocateBuffer(miniBlockSize, true, cap);
+        long address3 = heap.allocateBuffer(miniBlockSize + 1, true, cap);
+        assertTrue(heap.getBlock(address1).isSlab());
+        assertEquals(address1 + miniBlockSize, address2);
+        assertEquals(miniBlockSize, heap.getBlock(address1).allocatedSize(address1));
+        assertTrue(!heap.getBlock(address3).isSlab());
+    }
+
+    @Test
+    public void testManagedHeapFragmentation() {
+        long address1 = heap.allocateBuffer(miniBlockSize, true, cap);
+        heap.allocateBuffer(miniBlockSize, true, cap);
+        heap.free(address1);
+        HeapStats stats = heap.getStatistics();
+        assertEquals(miniBlockSize, stats.getTotalBytesAllocated());
+        assertEquals(blockSize - miniBlockSize, stats.getTotalBytesFree());
+        assertTrue(stats.getFragmentation() > 0.98);
+    }
+
+    @Test
+    public void testManagedHeapSlabs() {
+        heap = new ManagedHeap(nurserySize, blockSize, miniBlockSize, 32);
+        long address1 = heap.allocateBuffer(4, true, cap);
+        long address2 = heap.allocateBuffer(8, true, cap);
+        long address3 = heap.allocateBuffer(9, true, cap);
+        long address4 = heap.allocateBuffer(32, true, cap);
+        long address5 = heap.allocateBuffer(33, true, cap);
+        /* Each size class gets its own slab. */
+        assertEquals(address1 + 8, address2);
+        assertEquals(address1 + blockSize, address3);
+        assertEquals(address3 + blockSize, address4);
+        assertEquals(8, heap.getBlock(address1).allocatedSize(address1));
+        assertEquals(16, heap.getBlock(address3).allocatedSize(address3));
+        assertTrue(heap.getBlock(address1).isSlab());
+        assertTrue(!heap.getBlock(address5).isSlab());
+        heap.free(address1);
+        assertEquals(address1, heap.allocateBuffer(1, true, cap));
+        /* Heap and direct memory use different slabs. */
+        long address6 = heap.allocateBuffer(8, false, cap);
+        assertEquals(0, address6 & (blockSize - 1));
+    }
+
+    @Test
+    public void testManagedHeapSlabReuse() {
+        heap = new ManagedHeap(nurserySize, blockSize, miniBlockSize, 32);
+        int slots = blockSize / 32;
+        long[] addresses = new long[2 * slots + 1];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = heap.allocateBuffer(32, false, cap);
+        }
+        assertEquals(3, heap.getStatistics().getBlocksAllocated());
+        /* An empty slab goes back to the free block pool. */
+        for (int i = 0; i < slots; i++) {
+            heap.free(addresses[i]);
+        }
+        assertEquals(1, heap.getStatistics().getBlocksPooled());
+        long address = heap.allocateBuffer(blockSize, false, cap);
+        assertEquals(addresses[0], address);
+        assertTrue(!heap.getBlock(address).isSlab());
+        /* A slot freed in a full slab is used once the current slab fills up. */
+        heap.free(addresses[slots]);
+        for (int i = 1; i < slots; i++) {
+            heap.allocateBuffer(32, false, cap);
+        }
+        assertEquals(addresses[slots], heap.allocateBuffer(32, false, cap));
+        assertEquals(3, heap.getStatistics().getBlocksAllocated());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testManagedHeapSlabDoubleFree() {
+        heap = new ManagedHeap(nurserySize, blockSize, miniBlockSize, 32);
+        long address1 = heap.allocateBuffer(8, false, cap);
+        heap.allocateBuffer(8, false, cap);
+        heap.free(address1);
+        heap.free(address1);
+    }
 }
@@ -0,0 +1,108 @@
+package eta.runtime.util;
+
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class WorkStealingDequeTest {
+
+    WorkStealingDeque<Long> deque;
+
+    @Before
+    public void init() {
+        deque = new WorkStealingDeque<Long>(16);
+    }
+
+    @Test
+    public void testWSDInit() {
+        assertTrue(deque.isEmpty());
+        assertEquals(null, deque.pop());
+        assertEquals(null, deque.steal());
+        assertEquals(16, deque.capacity());
+        assertEquals(16, new WorkStealingDeque<Long>(9).capacity());
+    }
+
+    @Test
+    public void testWSDOrder() {
+        for (long i = 0; i < 4; i++) {
+            assertTrue(deque.push(Long.valueOf(i)));
+        }
+        assertEquals(4, deque.size());
+        /* The owner works LIFO while the thieves work FIFO. */
+        assertEquals(Long.valueOf(3), deque.pop());
+        assertEquals(Long.valueOf(0), deque.steal());
+        assertEquals(Long.valueOf(1), deque.steal());
+        assertEquals(Long.valueOf(2), deque.pop());
+        assertEquals(null, deque.pop());
+        assertEquals(null, deque.steal());
+        assertTrue(deque.isEmpty());
+    }
+
+    @Test
+    public void testWSDFull() {
+        for (long i = 0; i < deque.capacity(); i++) {
+            assertTrue(deque.push(Long.valueOf(i)));
+        }
+        assertFalse(deque.push(Long.valueOf(-1)));
+        assertEquals(Long.valueOf(0), deque.steal());
+        assertTrue(deque.push(Long.valueOf(-1)));
+        assertEquals(Long.valueOf(-1), deque.pop());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWSDNull() {
+        deque.push(null);
+    }
+
+    @Test
+    public void testWSDConcurrent() throws InterruptedException {
+        final int total    = 100000;
+        final int nThieves = 3;
+        final WorkStealingDeque<Long> wsd = new WorkStealingDeque<Long>(64);
+        final Set<Long> seen = Collections.synchronizedSet(new HashSet<Long>());
+        final AtomicInteger duplicates = new AtomicInteger();
+        final AtomicInteger taken = new AtomicInteger();
+        Thread[] thieves = new Thread[nThieves];
+        for (int i = 0; i < nThieves; i++) {
+            thieves[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        while (taken.get() < total) {
+                            Long l = wsd.steal();
+                            if (l != null) {
+                                if (!seen.add(l)) duplicates.incrementAndGet();
+                                taken.incrementAndGet();
+                            }
+                        }
+                    }
+                };
+            thieves[i].start();
+        }
+        long next = 0;
+        while (next < total) {
+            if (wsd.push(Long.valueOf(next))) {
+                next++;
+            } else {
+                Long l = wsd.pop();
+                if (l != null) {
+                    if (!seen.add(l)) duplicates.incrementAndGet();
+                    taken.incrementAndGet();
+                }
+            }
+        }
+        Long l;
+        while ((l = wsd.pop()) != null) {
+            if (!seen.add(l)) duplicates.incrementAndGet();
+            taken.incrementAndGet();
+        }
+        for (int i = 0; i < nThieves; i++) {
+            thieves[i].join();
+        }
+        assertEquals(0, duplicates.get());
+        assertEquals(total, seen.size());
+    }
+}